@@ -1,8 +1,76 @@
-//TO BE ADDED
 import org.apache.commons.cli.*;
 
+/* Command line options of flispcc */
 public class CLI {
+  final Options options = new Options();
+  CommandLine line;
 
-//TODO
+  public CLI() {
+    options.addOption("h", "help", false, "print this message");
+    options.addOption(null, "daemon", false,
+        "serve compile requests from Client until killed, on --socket or --port");
+    options.addOption(Option.builder().longOpt("socket").hasArg().argName("path")
+        .desc("Unix socket of the daemon, default " + Client.defaultSocket()).build());
+    options.addOption(Option.builder().longOpt("port").hasArg().argName("n")
+        .desc("loopback port of the daemon instead of a Unix socket, clients need the token"
+          + " the daemon writes to " + Client.tokenFile()).build());
+    options.addOption(Option.builder("j").longOpt("jobs").hasArg().argName("n")
+        .desc("compile on n threads in batch mode, default one per core").build());
+    options.addOption("b", "batch", false,
+        "compile many files in one run: files, directories, globs or @list files");
+    options.addOption("r", "run", false, "run the program in the built-in FLISP simulator");
+    options.addOption("p", "profile", false,
+        "run in the simulator and print estimated cycles per function, loop and statement,"
+        + " with call stacks for flame graphs in <file>.folded");
+    options.addOption(Option.builder().longOpt("cache").hasArg().argName("dir")
+        .desc("reuse output compiled before from the cache in dir").build());
+    options.addOption(Option.builder().longOpt("cache-size").hasArg().argName("MB")
+        .desc("size limit of the cache, least recently used files go first, default 64").build());
+    options.addOption("w", "watch", false,
+        "compile the sources again whenever they change, until killed");
+    options.addOption(null, "incremental", false,
+        "only compile functions that changed since this JVM last compiled the file,"
+        + " for --daemon and --watch");
+    options.addOption(null, "stats", false,
+        "print wall time, CPU time and allocation of every phase, and the size of the"
+        + " program, on stderr");
+    options.addOption(null, "stats-json", false, "the same as one line of JSON per file");
+    options.addOption("n", "no-assemble", false, "only write the .flisp file, no .s19 image");
+    options.addOption("q", "qaflisp", false, "also assemble with qaflisp and compare the images");
+    options.addOption(null, "no-optimize", false,
+        "skip load tracking and peephole rules, to measure what they save");
+    options.addOption(Option.builder().longOpt("no-peephole").hasArg().argName("rules")
+        .desc("skip the peephole rules named, comma separated: "
+          + String.join(", ", compiler.Peephole.ruleNames())).build());
+  }
 
+  public CLI parse(String[] args) throws ParseException {
+    line = new DefaultParser().parse(options, args);
+    return this;
+  }
+
+  public boolean has(String option) {
+    return line.hasOption(option);
+  }
+
+  public String value(String option) {
+    return line.getOptionValue(option);
+  }
+
+  /* Arguments that are not options */
+  public String[] files() {
+    return line.getArgs();
+  }
+
+  public void usage() {
+    usage(System.out);
+  }
+
+  public void usage(java.io.PrintStream out) {
+    java.io.PrintWriter w = new java.io.PrintWriter(out);
+    HelpFormatter f = new HelpFormatter();
+    f.printHelp(w, f.getWidth(), "flispcc [options] <SourceFile>, or flispcc -b [options] <Sources>...",
+        null, options, f.getLeftPadding(), f.getDescPadding(), null);
+    w.flush();
+  }
 }
@@ -0,0 +1,258 @@
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+import java.util.stream.*;
+
+/* Content addressed cache of compiled files.
+ *
+ * The key is the SHA-256 of the source bytes, the options that change
+ * the output and the build of the compiler, so a file compiled before
+ * costs one hash and a copy of the .flisp and .s19 it gave. The build
+ * is a hash of the jar or class files the compiler runs from, so
+ * entries of another build are never hit, and are evicted in time. Every entry is a directory
+ * ab/abcdef... holding the files, written under a temporary name and
+ * moved in place, so a half written entry is never seen.
+ *
+ * The cache is kept below a size limit by deleting the entries that
+ * were used longest ago. The modification time of an entry is set on
+ * every hit, so it tells when the entry was used last. Only entries
+ * are counted and deleted, anything else in the directory is not the
+ * cache's and is left alone.
+ * */
+public class Cache {
+  // Part of every key with the build, bump when entries change layout
+  static final String FORMAT = "flispcc-1";
+  static String build;   // hash of the compiler, see build()
+
+  // Names of the directories of an entry, ab/abcdef...
+  static final String PREFIX = "[0-9a-f]{2}";
+  static final String KEY = "[0-9a-f]{64}";
+
+  // One cache per directory in a process, the daemon has many drivers
+  static final Map<Path, Cache> OPEN = new HashMap<>();
+
+  final Path dir;
+  long maxBytes;
+  long bytes = -1;   // total size, counted on first store
+
+  int hits;
+  int misses;
+  int stores;
+  int evictions;
+
+  Cache(Path dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  /* The cache in dir, with the size limit given last. A smaller limit
+   * is kept to from the next store. */
+  public static synchronized Cache open(Path dir, long maxBytes) {
+    Cache c = OPEN.computeIfAbsent(dir.toAbsolutePath().normalize(), d -> new Cache(d, maxBytes));
+    synchronized (c) {
+      c.maxBytes = maxBytes;
+    }
+    return c;
+  }
+
+  /* Hex SHA-256 of the source and options */
+  public static String key(byte[] source, String options) {
+    MessageDigest md = sha256();
+    md.update((FORMAT + "\0" + build() + "\0" + options + "\0").getBytes(StandardCharsets.UTF_8));
+    md.update(source);
+    return hex(md.digest());
+  }
+
+  /* Hex SHA-256 of the classes of this compiler: the jar, or every
+   * .class file below the directory they are loaded from. Computed
+   * once per process. */
+  static synchronized String build() {
+    if (build != null)
+      return build;
+    MessageDigest md = sha256();
+    try {
+      CodeSource cs = Cache.class.getProtectionDomain().getCodeSource();
+      Path from = Paths.get(cs.getLocation().toURI());
+      if (Files.isDirectory(from)) {
+        List<Path> classes;
+        try (Stream<Path> s = Files.walk(from)) {
+          classes = s.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+        }
+        for (Path c : classes) {
+          md.update(from.relativize(c).toString().getBytes(StandardCharsets.UTF_8));
+          md.update(Files.readAllBytes(c));
+        }
+      } else {
+        md.update(Files.readAllBytes(from));
+      }
+    } catch (IOException | URISyntaxException | RuntimeException e) {
+      // No classes to hash, a new build can not be told apart
+      md.update(FORMAT.getBytes(StandardCharsets.UTF_8));
+    }
+    build = hex(md.digest());
+    return build;
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes)
+      sb.append(String.format("%02x", b));
+    return sb.toString();
+  }
+
+  Path entry(String key) {
+    return dir.resolve(key.substring(0, 2)).resolve(key);
+  }
+
+  /* Copies the cached files of key to the targets, false if any of
+   * them is not in the cache. Null targets are not wanted. */
+  public boolean fetch(String key, Path... targets) {
+    Path e = entry(key);
+    for (Path t : targets) {
+      if (t != null && !Files.isRegularFile(e.resolve(name(t)))) {
+        count(false);
+        return false;
+      }
+    }
+    try {
+      for (Path t : targets)
+        if (t != null)
+          Files.copy(e.resolve(name(t)), t, StandardCopyOption.REPLACE_EXISTING);
+      Files.setLastModifiedTime(e, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException x) {
+      // Evicted by another process while we copied
+      count(false);
+      return false;
+    }
+    count(true);
+    return true;
+  }
+
+  synchronized void count(boolean hit) {
+    if (hit)
+      hits++;
+    else
+      misses++;
+  }
+
+  /* Adds the files to the entry of key */
+  public void store(String key, Path... files) throws IOException {
+    Path e = entry(key);
+    Files.createDirectories(e);
+    long added = 0;
+    for (Path f : files) {
+      if (f == null)
+        continue;
+      Path tmp = Files.createTempFile(e, name(f), ".tmp");
+      Files.copy(f, tmp, StandardCopyOption.REPLACE_EXISTING);
+      added += Files.size(tmp);
+      Files.move(tmp, e.resolve(name(f)),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    synchronized (this) {
+      stores++;
+      if (bytes < 0)
+        bytes = size();
+      else
+        bytes += added;
+      if (bytes > maxBytes)
+        evict();
+    }
+  }
+
+  /* Deletes least recently used entries until below the limit */
+  void evict() throws IOException {
+    List<Path> entries = entries();
+    Map<Path, FileTime> used = new HashMap<>();
+    for (Path e : entries)
+      used.put(e, Files.getLastModifiedTime(e));
+    entries.sort(Comparator.comparing(used::get));
+    for (Path e : entries) {
+      if (bytes <= maxBytes)
+        break;
+      bytes -= size(e);
+      delete(e);
+      evictions++;
+      try {
+        Files.deleteIfExists(e.getParent());
+      } catch (DirectoryNotEmptyException x) {
+        // Other entries with the same prefix
+      }
+    }
+  }
+
+  /* Every entry directory, nothing else below dir */
+  List<Path> entries() throws IOException {
+    try (Stream<Path> s = Files.list(dir)) {
+      return s.filter(p -> isEntryDir(p, PREFIX)).flatMap(Cache::list).collect(Collectors.toList());
+    }
+  }
+
+  static Stream<Path> list(Path prefix) {
+    String start = prefix.getFileName().toString();
+    try (Stream<Path> s = Files.list(prefix)) {
+      return s.filter(p -> isEntryDir(p, KEY) && p.getFileName().toString().startsWith(start))
+        .collect(Collectors.toList()).stream();
+    } catch (IOException e) {
+      return Stream.empty();
+    }
+  }
+
+  static boolean isEntryDir(Path p, String name) {
+    return p.getFileName().toString().matches(name)
+      && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS);
+  }
+
+  /* Bytes in all entries */
+  long size() throws IOException {
+    long n = 0;
+    for (Path e : entries())
+      n += size(e);
+    return n;
+  }
+
+  static long size(Path p) throws IOException {
+    try (Stream<Path> s = Files.walk(p)) {
+      return s.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+    }
+  }
+
+  static void delete(Path p) throws IOException {
+    try (Stream<Path> s = Files.walk(p)) {
+      for (Path f : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+        Files.deleteIfExists(f);
+    }
+  }
+
+  /* Entry file name of an output file: flisp or s19 */
+  static String name(Path f) {
+    String n = f.getFileName().toString();
+    return n.substring(n.lastIndexOf('.') + 1);
+  }
+
+  public synchronized String stats() {
+    int total = hits + misses;
+    if (bytes < 0 && Files.isDirectory(dir)) {
+      try {
+        bytes = size();
+      } catch (IOException e) {
+        // Only shown as 0
+      }
+    }
+    return String.format("cache %s: %d hits, %d misses (%.0f%%), %d stored, %d evicted, %d KB\n",
+        dir, hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, stores, evictions,
+        Math.max(bytes, 0) / 1024);
+  }
+}
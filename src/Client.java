@@ -0,0 +1,132 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+/* Thin client of the compile daemon.
+ *
+ * Takes the same arguments as Main and sends them, with the current
+ * directory, to a daemon started with flispcc --daemon. What the
+ * daemon prints is printed here and its exit status becomes ours. The
+ * compiler itself is never loaded, so the client starts quickly.
+ *
+ * The protocol is lines of text, a key and a value. A request is
+ * "dir <path>" and one "arg <arg>" per argument, ended by an empty
+ * line. Over a port it starts with "token <hex>", the token the daemon
+ * wrote to tokenFile(). The reply is "out <line>" and "err <line>" for what was
+ * printed, "time <microseconds>" spent compiling and "exit <status>".
+ *
+ * The client only talks to a Unix socket of its own user. A socket of
+ * anyone else could be a fake daemon, which would be sent the
+ * directory and arguments and could print anything.
+ *
+ * Set FLISPCC_TIME to have the time printed on stderr.
+ * */
+public class Client {
+
+  /* Directory of the default socket, which the daemon keeps for its
+   * user alone: $XDG_RUNTIME_DIR/flispcc, or ~/.flispcc without one */
+  public static Path socketDir() {
+    String runtime = System.getenv("XDG_RUNTIME_DIR");
+    if (runtime != null && !runtime.isEmpty())
+      return Paths.get(runtime, "flispcc");
+    return Paths.get(System.getProperty("user.home"), ".flispcc");
+  }
+
+  /* Socket both sides use when no --socket or --port is given */
+  public static String defaultSocket() {
+    return socketDir().resolve("daemon.sock").toString();
+  }
+
+  /* Whether path, not what a link there points to, is of this user */
+  static boolean isOwn(Path path) throws IOException {
+    UserPrincipal me = path.getFileSystem().getUserPrincipalLookupService()
+      .lookupPrincipalByName(System.getProperty("user.name"));
+    return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(me);
+  }
+
+  /* Token of a daemon on a port, only its user can read it */
+  public static Path tokenFile() {
+    return Paths.get(System.getProperty("user.home"), ".flispcc-token");
+  }
+
+  /* Loopback port if port is set, otherwise the Unix socket */
+  public static SocketAddress address(String socket, String port) {
+    if (port != null)
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port));
+    return UnixDomainSocketAddress.of(socket != null ? socket : defaultSocket());
+  }
+
+  /* Token from tokenFile(), empty if there is none */
+  static String token() {
+    try {
+      return new String(Files.readAllBytes(tokenFile()), StandardCharsets.UTF_8).trim();
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  public static void main(String args[]) {
+    String socket = null;
+    String port = null;
+    for (int i = 0; i + 1 < args.length; i++) {
+      if (args[i].equals("--socket")) socket = args[i + 1];
+      if (args[i].equals("--port"))   port = args[i + 1];
+    }
+    SocketAddress address = address(socket, port);
+
+    int status = 1;
+    if (address instanceof UnixDomainSocketAddress) {
+      Path path = ((UnixDomainSocketAddress)address).getPath();
+      try {
+        if (Files.isSymbolicLink(path) || !isOwn(path)) {
+          System.err.println(path + " is not your socket, not sending it anything");
+          System.exit(1);
+        }
+      } catch (IOException e) {
+        // Not there, connecting says so
+      }
+    }
+    try (SocketChannel ch = SocketChannel.open(address)) {
+      Writer request = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8);
+      if (port != null)
+        request.write("token " + token() + "\n");
+      request.write("dir " + Paths.get("").toAbsolutePath() + "\n");
+      for (String a : args)
+        request.write("arg " + a + "\n");
+      request.write("\n");
+      request.flush();
+
+      BufferedReader reply = new BufferedReader(
+          new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+      String line;
+      while ((line = reply.readLine()) != null) {
+        int sp = line.indexOf(' ');
+        String key = sp < 0 ? line : line.substring(0, sp);
+        String value = sp < 0 ? "" : line.substring(sp + 1);
+        switch (key) {
+          case "out":
+            System.out.println(value);
+            break;
+          case "err":
+            System.err.println(value);
+            break;
+          case "time":
+            if (System.getenv("FLISPCC_TIME") != null)
+              System.err.println(String.format("compiled in %.1f ms", Long.parseLong(value) / 1000.0));
+            break;
+          case "exit":
+            status = Integer.parseInt(value);
+            break;
+        }
+      }
+    } catch (IOException e) {
+      System.err.println(String.format("No flispcc daemon at %s, start one with --daemon (%s)",
+            address, e.getMessage()));
+    }
+    System.out.flush();
+    System.exit(status);
+  }
+}
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Compile server for Client, started with flispcc --daemon.
+ *
+ * Listens on a Unix socket, or a loopback port, and runs every request
+ * through Main.run as if the command line had been given in the
+ * directory of the client. The JVM, ANTLR's ATN and DFA cache and the
+ * JIT stay warm between requests, so a small file takes milliseconds.
+ * Requests are served on their own threads. Output files are written
+ * next to the sources, as Main does; the protocol is in Client.
+ *
+ * A request may write any file the user of the daemon may, so only
+ * that user gets in. The default Unix socket is in Client.socketDir(),
+ * a directory no one else can enter. Any socket is bound in a new
+ * directory like that, made readable and writable by its owner alone
+ * and only then moved to its path, so no one else can connect even
+ * while it is set up. Client refuses a socket of another user, which
+ * could be a fake daemon. Any process of any user can connect to a loopback port,
+ * so there every request must start with a token, random for each
+ * daemon and written to Client.tokenFile(), which only the owner can
+ * read.
+ * */
+public class Daemon {
+  final SocketAddress address;
+  String token;   // for a port, null on a Unix socket
+  final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "flispcc-request");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public Daemon(SocketAddress address) {
+    this.address = address;
+  }
+
+  /* Serves requests until the process is killed */
+  public void serve() throws IOException {
+    ServerSocketChannel server;
+    if (address instanceof UnixDomainSocketAddress) {
+      Path path = ((UnixDomainSocketAddress)address).getPath().toAbsolutePath();
+      if (path.getParent().equals(Client.socketDir().toAbsolutePath()))
+        privateDir(path.getParent());
+      removeStale(path);
+      server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      bind(server, path);
+      path.toFile().deleteOnExit();
+    } else {
+      server = ServerSocketChannel.open();
+      server.bind(address);
+      token = newToken();
+    }
+    Stats.register();
+    System.err.println("flispcc daemon listening on " + address);
+    while (true) {
+      SocketChannel ch = server.accept();
+      workers.execute(() -> handle(ch));
+    }
+  }
+
+  /* Deletes a socket left behind by a daemon that was killed. Anything
+   * else at path, or a socket a daemon still answers on, is an error. */
+  static void removeStale(Path path) throws IOException {
+    if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+      return;
+    if (!isSocket(path))
+      throw new IOException(path + " exists and is not a socket");
+    try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+      throw new IOException("A daemon is already listening on " + path);
+    } catch (ConnectException e) {
+      // Nobody home
+    }
+    Files.delete(path);
+  }
+
+  /* Binds server to a socket at path that only this user can reach
+   * from the start. It is bound in a new private directory next to
+   * path, so before ownerOnly no one else can get to it, and then
+   * moved in place. */
+  static void bind(ServerSocketChannel server, Path path) throws IOException {
+    Path dir;
+    try {
+      dir = Files.createTempDirectory(path.getParent(), ".flispcc",
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    } catch (UnsupportedOperationException e) {
+      dir = Files.createTempDirectory(path.getParent(), ".flispcc");
+    }
+    Path tmp = dir.resolve("socket");
+    try {
+      server.bind(UnixDomainSocketAddress.of(tmp));
+      ownerOnly(tmp);
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+      Files.delete(dir);
+    }
+  }
+
+  /* Makes dir if there is none. It must be a directory of this user,
+   * and no one else may enter it. */
+  static void privateDir(Path dir) throws IOException {
+    try {
+      Files.createDirectories(dir,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    } catch (UnsupportedOperationException e) {
+      Files.createDirectories(dir);
+    }
+    if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+      throw new IOException(dir + " is not a directory");
+    if (!Client.isOwn(dir))
+      throw new IOException(dir + " belongs to " + Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS).getName());
+    try {
+      Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+    } catch (UnsupportedOperationException e) {
+      File f = dir.toFile();
+      f.setReadable(false, false);
+      f.setWritable(false, false);
+      f.setExecutable(false, false);
+      f.setReadable(true, true);
+      f.setWritable(true, true);
+      f.setExecutable(true, true);
+    }
+  }
+
+  static boolean isSocket(Path path) throws IOException {
+    try {
+      int mode = (Integer)Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+      return (mode & 0170000) == 0140000;   // S_IFSOCK
+    } catch (UnsupportedOperationException e) {
+      // Not POSIX, a socket is at least not a file, directory or link
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+  }
+
+  static void ownerOnly(Path path) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+    } catch (UnsupportedOperationException e) {
+      File f = path.toFile();
+      f.setReadable(false, false);
+      f.setWritable(false, false);
+      f.setReadable(true, true);
+      f.setWritable(true, true);
+    }
+  }
+
+  /* Random token, written where only this user can read it. The file
+   * is made under another name and moved in place, so it is never
+   * seen readable by others or half written. */
+  static String newToken() throws IOException {
+    byte[] bytes = new byte[32];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes)
+      sb.append(String.format("%02x", b));
+    Path file = Client.tokenFile();
+    Path tmp;
+    try {
+      tmp = Files.createTempFile(file.getParent(), ".flispcc-token", ".tmp",
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      tmp = Files.createTempFile(file.getParent(), ".flispcc-token", ".tmp");
+      ownerOnly(tmp);
+    }
+    Files.write(tmp, (sb + "\n").getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return sb.toString();
+  }
+
+  void handle(SocketChannel channel) {
+    try (SocketChannel ch = channel) {
+      BufferedReader request = new BufferedReader(
+          new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+      Path dir = Paths.get("");
+      List<String> args = new ArrayList<>();
+      String shown = null;
+      String line;
+      while ((line = request.readLine()) != null && !line.isEmpty()) {
+        int sp = line.indexOf(' ');
+        String key = sp < 0 ? line : line.substring(0, sp);
+        String value = sp < 0 ? "" : line.substring(sp + 1);
+        if (key.equals("token"))
+          shown = value;
+        else if (key.equals("dir"))
+          dir = Paths.get(value);
+        else if (key.equals("arg"))
+          args.add(value);
+      }
+
+      // Nothing of the request is run without the token
+      if (token != null && (shown == null || !MessageDigest.isEqual(
+              token.getBytes(StandardCharsets.UTF_8), shown.getBytes(StandardCharsets.UTF_8)))) {
+        Writer w = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8);
+        w.write("err Wrong or no token, it is in " + Client.tokenFile() + "\nexit 1\n");
+        w.flush();
+        return;
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      long start = System.nanoTime();
+      int status;
+      try (PrintStream o = new PrintStream(out, true, StandardCharsets.UTF_8);
+          PrintStream e = new PrintStream(err, true, StandardCharsets.UTF_8)) {
+        if (args.contains("--daemon")) {
+          e.println("Already a daemon");
+          status = 1;
+        } else if (args.contains("-w") || args.contains("--watch")) {
+          // Would hold a request thread until the daemon is killed
+          e.println("Watch the sources without the daemon");
+          status = 1;
+        } else {
+          status = Main.run(args.toArray(new String[0]), dir, o, e);
+        }
+      } catch (RuntimeException e) {
+        err.write(("Daemon error: " + e + "\n").getBytes(StandardCharsets.UTF_8));
+        status = 1;
+      }
+      long micros = (System.nanoTime() - start) / 1000;
+
+      StringBuilder reply = new StringBuilder();
+      lines(reply, "out", out.toString(StandardCharsets.UTF_8));
+      lines(reply, "err", err.toString(StandardCharsets.UTF_8));
+      reply.append("time ").append(micros).append('\n');
+      reply.append("exit ").append(status).append('\n');
+      Writer w = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8);
+      w.write(reply.toString());
+      w.flush();
+    } catch (IOException e) {
+      System.err.println("Request failed: " + e.getMessage());
+    }
+  }
+
+  /* One "key line" per line of text */
+  static void lines(StringBuilder sb, String key, String text) {
+    if (text.isEmpty())
+      return;
+    if (text.endsWith("\n"))
+      text = text.substring(0, text.length() - 1);
+    for (String l : text.split("\n", -1))
+      sb.append(key).append(' ').append(l).append('\n');
+  }
+}
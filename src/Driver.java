@@ -0,0 +1,477 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import org.antlr.v4.runtime.*;
+import C.*;
+import C.Absyn.*;
+import typechecker.TypeChecker;
+import typechecker.TypeException;
+import compiler.Assembler;
+import compiler.Assembly;
+import compiler.Compiler;
+import compiler.Incremental;
+import compiler.LoadElimination;
+import compiler.Peephole;
+import compiler.Profiler;
+import compiler.Simulator;
+import optimizer.ConstantFolder;
+import optimizer.DeadCodeEliminator;
+
+/* Compiles many source files in the same JVM.
+ *
+ * Each thread creates a lexer and parser once and gives them the next
+ * file as new input. ANTLR keeps its DFA cache for the grammar across
+ * files, so only the first files pay for the warm-up. Everything else,
+ * TypeChecker, optimizers and Compiler, is created per file.
+ *
+ * Files are compiled on a ForkJoinPool. What a file prints is kept
+ * until it is done and written in the order the files were given, so
+ * the output does not depend on the number of threads. Errors are
+ * reported per file and counted instead of ending the process, and
+ * summary() tells how it went.
+ * */
+public class Driver {
+
+  /* How compiling one file ended */
+  public enum Status {
+    OK, NOT_FOUND, SYNTAX_ERROR, TYPE_ERROR, COMPILER_ERROR, SIMULATOR_ERROR, ASSEMBLER_ERROR
+  }
+
+  static final String ASSEMBLER = "qaflisp";   // will look for assembler in $PATH
+  static final String WILDCARDS = ".*[*?\\[{].*";
+  static final PathMatcher SOURCES = FileSystems.getDefault().getPathMatcher("glob:*.{c,cc}");
+
+  /* Lexer and parser of one thread */
+  static class Frontend {
+    final CLexer lexer = new CLexer(null);
+    final CParser parser = new CParser(null);
+
+    // The console listeners of ANTLR would print past the order of files
+    Frontend() {
+      lexer.removeErrorListeners();
+      parser.removeErrorListeners();
+      lexer.addErrorListener(new BNFCErrorListener());
+      parser.addErrorListener(new BNFCErrorListener());
+    }
+  }
+
+  /* How one file went and what it printed */
+  static class Result {
+    final String file;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    final Stats stats;
+    Status status;
+
+    Result(String file, boolean measure) {
+      this.file = file;
+      this.stats = new Stats(file, measure);
+    }
+  }
+
+  // Shared by all drivers, the daemon runs many
+  static final ThreadLocal<Frontend> FRONTENDS = ThreadLocal.withInitial(Frontend::new);
+
+  // Functions of every file compiled with --incremental in this JVM
+  static final Map<Path, Incremental> INCREMENTAL = new HashMap<>();
+
+  static synchronized Incremental incremental(Path source) {
+    return INCREMENTAL.computeIfAbsent(source.toAbsolutePath().normalize(), p -> new Incremental());
+  }
+
+  final CLI cli;
+  final Path dir;           // relative file names start here
+  final PrintStream out;
+  final PrintStream err;
+  final Cache cache;        // null without --cache
+  final boolean measure;    // phases timed, for --stats or JMX
+  final Set<String> noPeephole;   // rules of --no-peephole
+  final Stats total;
+
+  // Only touched by the thread that reports
+  final Map<Status, Integer> counts = new EnumMap<>(Status.class);
+  final List<String> failed = new ArrayList<>();
+  long started = System.nanoTime();
+
+  public Driver(CLI cli) {
+    this(cli, Paths.get(""), System.out, System.err);
+  }
+
+  public Driver(CLI cli, Path dir, PrintStream out, PrintStream err) {
+    this.cli = cli;
+    this.dir = dir;
+    this.out = out;
+    this.err = err;
+    if (cli.has("cache")) {
+      long mb = cli.has("cache-size") ? Long.parseLong(cli.value("cache-size")) : 64;
+      cache = Cache.open(dir.resolve(cli.value("cache")), mb << 20);
+    } else {
+      cache = null;
+    }
+    measure = cli.has("stats") || cli.has("stats-json") || Stats.registered();
+    total = new Stats("total", measure);
+    noPeephole = new TreeSet<>();
+    if (cli.has("no-peephole"))
+      for (String r : cli.value("no-peephole").split(","))
+        if (!r.trim().isEmpty())
+          noPeephole.add(r.trim());
+    // Before any file, not once per file
+    for (String r : noPeephole)
+      if (!Peephole.ruleNames().contains(r))
+        throw new IllegalArgumentException("No peephole rule " + r + ", the rules are "
+            + String.join(",", Peephole.ruleNames()));
+  }
+
+  /* Compiles every file on jobs threads, results come in order */
+  public void compileAll(List<String> files, int jobs) {
+    if (jobs <= 1) {
+      for (String f : files)
+        compile(f);
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(jobs);
+    try {
+      List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+      for (String f : files)
+        tasks.add(pool.submit(() -> run(f)));
+      for (ForkJoinTask<Result> t : tasks)
+        report(t.join());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public Status compile(String srcFile) {
+    return report(run(srcFile));
+  }
+
+  Status report(Result r) {
+    out.print(r.out.toString());
+    out.flush();
+    err.print(r.err.toString());
+    if (cli.has("stats"))
+      err.print(r.stats.text());
+    if (cli.has("stats-json"))
+      err.println(r.stats.json());
+    total.add(r.stats);
+    if (Stats.registered())
+      Stats.TOTAL.add(r.stats);
+    counts.merge(r.status, 1, Integer::sum);
+    if (r.status != Status.OK)
+      failed.add(r.file + ": " + r.status.toString().toLowerCase().replace('_', ' '));
+    return r.status;
+  }
+
+  public boolean allOk() {
+    return failed.isEmpty();
+  }
+
+  /* One line per failed file and the totals */
+  public String summary() {
+    StringBuilder sb = new StringBuilder();
+    for (String f : failed)
+      sb.append(f).append('\n');
+    int total = 0;
+    for (int n : counts.values())
+      total += n;
+    sb.append(String.format("%d files, %d compiled, %d failed in %d ms",
+          total, counts.getOrDefault(Status.OK, 0), failed.size(),
+          (System.nanoTime() - started) / 1_000_000));
+    for (Map.Entry<Status, Integer> e : counts.entrySet())
+      if (e.getKey() != Status.OK)
+        sb.append(String.format(", %d %s", e.getValue(),
+              e.getKey().toString().toLowerCase().replace('_', ' ')));
+    return sb.append('\n').toString();
+  }
+
+  /* Stats of all files so far, as asked for on the command line */
+  public String totals() {
+    return (cli.has("stats") ? total.text() : "") + (cli.has("stats-json") ? total.json() + "\n" : "");
+  }
+
+  /*=============== Finding sources ================ */
+
+  /* Files named by args: files, directories searched for .c and .cc,
+   * globs like src/**.c, and @list for a file with one name per line */
+  public static List<String> sources(String[] args) throws IOException {
+    return sources(Paths.get(""), args);
+  }
+
+  /* Same, with names relative to dir. The names returned are too. */
+  public static List<String> sources(Path dir, String[] args) throws IOException {
+    List<String> files = new ArrayList<>();
+    for (String a : args) {
+      if (a.startsWith("@")) {
+        for (String line : Files.readAllLines(dir.resolve(a.substring(1))))
+          if (!line.trim().isEmpty())
+            files.add(line.trim());
+      } else if (Files.isDirectory(dir.resolve(a))) {
+        files.addAll(walk(dir, Paths.get(a), p -> SOURCES.matches(p.getFileName())));
+      } else if (a.matches(WILDCARDS)) {
+        PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + a);
+        files.addAll(walk(dir, globBase(a), m::matches));
+      } else {
+        files.add(a);
+      }
+    }
+    return files;
+  }
+
+  static List<String> walk(Path dir, Path start, java.util.function.Predicate<Path> match)
+      throws IOException {
+    Path base = dir.toAbsolutePath();
+    try (Stream<Path> s = Files.walk(base.resolve(start))) {
+      return s.filter(Files::isRegularFile)
+        .map(p -> start.isAbsolute() ? p : base.relativize(p))
+        .map(Path::normalize).filter(match)
+        .map(Path::toString).sorted().collect(Collectors.toList());
+    }
+  }
+
+  /* Directory part of a glob before the first wildcard */
+  static Path globBase(String glob) {
+    Path p = Paths.get(glob);
+    Path base = p.getRoot();
+    for (Path name : p) {
+      if (name.toString().matches(WILDCARDS))
+        break;
+      base = base == null ? name : base.resolve(name);
+    }
+    return base == null ? Paths.get(".") : base;
+  }
+
+  /*=============== One file ================ */
+
+  Result run(String srcFile) {
+    Result r = new Result(srcFile, measure);
+    try (PrintStream out = new PrintStream(r.out, true);
+        PrintStream err = new PrintStream(r.err, true)) {
+      r.status = run(srcFile, out, err, r.stats);
+    }
+    r.stats.end();
+    return r;
+  }
+
+  Status run(String srcFile, PrintStream out, PrintStream err, Stats stats) {
+    final CLexer lexer = FRONTENDS.get().lexer;
+    final CParser parser = FRONTENDS.get().parser;
+    final String fileCore  = stripSuffix(dir.resolve(srcFile).toString());   // Ex: path/to/file
+    final String className = stripPath(fileCore);    // Ex:         file
+    final String flisp     = fileCore + ".flisp";    // Ex: path/to/file.flisp
+    final String folded    = fileCore + ".folded";   // Ex: path/to/file.folded
+    final String s19       = fileCore + ".s19";      // Ex: path/to/file.s19
+
+    stats.start("read");
+    byte[] source;
+    try {
+      source = Files.readAllBytes(dir.resolve(srcFile));
+    } catch (IOException e) {
+      err.println("Error: File not found: " + srcFile);
+      return Status.NOT_FOUND;
+    }
+
+    // Running needs the instructions, the cache only has files
+    final boolean assemble = !cli.has("no-assemble");
+    String key = null;
+    if (cache != null && !cli.has("run") && !cli.has("profile") && !cli.has("qaflisp")) {
+      stats.start("cache");
+      key = Cache.key(source, cli.has("no-optimize") ? "no-optimize"
+                              : "no-peephole=" + String.join(",", noPeephole));
+      if (cache.fetch(key, Paths.get(flisp), assemble ? Paths.get(s19) : null)) {
+        out.println(String.format("Compilation successful. Output file: %s", flisp));
+        if (assemble)
+          out.println(String.format("Assembly successful. Output file: %s", s19));
+        return Status.OK;
+      }
+    }
+
+    stats.count("source bytes", source.length);
+
+    try {
+      // Tokens first, so that lexing and parsing are timed apart
+      stats.start("lex");
+      lexer.setInputStream(new ANTLRInputStream(new String(source)));
+      CommonTokenStream tokens = new CommonTokenStream(lexer);
+      tokens.fill();
+      stats.count("tokens", tokens.size());
+
+      // Get ast from parser
+      stats.start("parse");
+      parser.setTokenStream(tokens);
+      Program ast = parser.program().result;
+      if (stats.on) {
+        stats.end();
+        stats.count("ast nodes", Stats.nodes(ast));
+      }
+
+      Compiler compiler = cli.has("no-optimize") ? new Compiler(null, null)
+                        : new Compiler(new LoadElimination(), new Peephole(noPeephole));
+      Assembly asm;
+      boolean incremental = cli.has("incremental") || cli.has("watch");
+      Incremental inc = incremental ? incremental(dir.resolve(srcFile)) : null;
+      if (inc != null) {
+        // Only functions that changed since last time. No lock is held
+        // while compiling, the functions may be compiled on the pool.
+        stats.start("frontend");
+        Program optimized = inc.frontEnd(ast);
+        stats.start("compile");
+        asm = compiler.incremental(inc).generate(className, optimized);
+      } else {
+        // Type check
+        stats.start("typecheck");
+        Program typedTree = new TypeChecker().typecheck(ast);
+
+        // Replace expressions with known values by literals
+        stats.start("optimize");
+        typedTree = new ConstantFolder().fold(typedTree);
+
+        // Drop branches, statements and functions that never run
+        typedTree = new DeadCodeEliminator().eliminate(typedTree);
+
+        // Compile into assembler code, written to the same
+        // directory where source file was.
+        stats.start("compile");
+        asm = compiler.generate(className, typedTree);
+      }
+      if (stats.on) {
+        stats.end();
+        stats.count("instructions", asm.instructions());
+        stats.count("labels", asm.labels());
+        stats.max("peak stack", asm.stackLimit());
+      }
+      stats.start("write");
+      try (Writer writer = new BufferedWriter(new FileWriter(flisp))) {
+        asm.writeTo(writer);
+      }
+
+      // Don't know if neccessary
+      out.println(String.format("Compilation successful. Output file: %s", flisp));
+
+      // Run in process, no external tools needed
+      if (cli.has("run") || cli.has("profile")) {
+        stats.start("simulate");
+        try {
+          Simulator sim = new Simulator(asm);
+          Profiler profiler = cli.has("profile") ? sim.profile() : null;
+          int a = sim.run();
+          out.println(String.format("main returned %d after %d instructions, %d cycles",
+                (byte) a, sim.steps(), sim.cycles()));
+          if (profiler != null) {
+            out.print(profiler.flat());
+            try (Writer writer = new BufferedWriter(new FileWriter(folded))) {
+              writer.write(profiler.collapsed());
+            }
+          }
+        } catch (RuntimeException e) {
+          err.println(String.format("Simulator error: %s", e.getMessage()));
+          return Status.SIMULATOR_ERROR;
+        }
+      }
+
+      if (!assemble) {
+        if (key != null) {
+          stats.start("cache");
+          cache.store(key, Paths.get(flisp));
+        }
+        return Status.OK;
+      }
+
+      // qaflisp first if asked for, its image is compared with ours
+      int[] external = null;
+      if (cli.has("qaflisp")) {
+        stats.start("qaflisp");
+        Process ps = null;
+        try {
+          ps = Runtime.getRuntime().exec(String.format("%s %s", ASSEMBLER, flisp));
+        } catch(IOException e) {
+          err.println("Error: Could not find qaflisp (assembler) in PATH.");
+          return Status.ASSEMBLER_ERROR;
+        }
+
+        // Print messages from assembler process
+        InputStream in = ps.getInputStream();
+        int x = -1;
+        while((x = in.read()) != -1) {
+          out.print((char) x);
+        }
+        ps.waitFor();
+        for (String name : new String[] { s19, fileCore + ".S19" }) {
+          if (new File(name).exists()) {
+            try (Reader reader = new FileReader(name)) {
+              external = Assembler.readS19(reader);
+            }
+            break;
+          }
+        }
+      }
+
+      // Assemble in process, no text round trip
+      stats.start("assemble");
+      Assembler image = new Assembler(asm);
+      try (Writer writer = new BufferedWriter(new FileWriter(s19))) {
+        image.writeS19(writer);
+      }
+      out.println(String.format("Assembly successful. Output file: %s", s19));
+
+      if (external != null) {
+        List<Integer> diff = image.differences(external);
+        for (int a : diff)
+          err.println(String.format("Differs from qaflisp at $%02X: %02X, qaflisp %02X",
+                a, image.byteAt(a) & 0xFF, external[a] & 0xFF));
+        if (!diff.isEmpty())
+          return Status.ASSEMBLER_ERROR;
+      }
+      if (key != null) {
+        stats.start("cache");
+        cache.store(key, Paths.get(flisp), Paths.get(s19));
+      }
+      return Status.OK;
+    }
+    catch (TypeException e) {
+      out.println("TYPE ERROR");
+      err.println(e.toString());
+      return Status.TYPE_ERROR;
+    }
+    catch (ParseError e) {
+      out.println("SYNTAX ERROR");
+      out.println(String.format("     %s:%d:%d: %s", srcFile, e.line, e.column, e.getMessage()));
+      return Status.SYNTAX_ERROR;
+    }
+    catch (RuntimeException e) {
+      err.println(String.format("Compiler error: %s", e.getMessage()));
+      err.println(e.toString());
+      return Status.COMPILER_ERROR;
+    }
+    catch (IOException e) {
+      err.println(e.toString());
+      return Status.COMPILER_ERROR;
+    }
+    catch (InterruptedException e) {
+      err.println(e.toString());
+      Thread.currentThread().interrupt();
+      return Status.ASSEMBLER_ERROR;
+    }
+    catch (Throwable e) {
+      out.println("SYNTAX ERROR");
+      out.println("     " + e.getMessage());
+      return Status.SYNTAX_ERROR;
+    }
+  }
+
+  // Utilities
+  ///////////////////////////////////////////////////////////////////////////
+
+  // Remove path from a file name.
+  static String stripPath(String name) {
+    return new File(name).getName();
+  }
+
+  // Remove extension from a file name (keep the path).
+  static String stripSuffix(String filename) {
+    int divider = filename.lastIndexOf('.');
+    if (divider <= 0) return filename;
+    else return filename.substring(0, divider);
+  }
+}
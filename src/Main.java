@@ -1,14 +1,11 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
-import java.lang.Runtime;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.atn.*;
 import org.antlr.v4.runtime.dfa.*;
 import C.*;
 import C.Absyn.*;
-import typechecker.TypeChecker;
-import typechecker.TypeException;
-import compiler.Compiler;
 
 class ParseError extends RuntimeException
 {
@@ -46,98 +43,80 @@ class BNFCErrorListener implements ANTLRErrorListener
 
 public class Main {
   public static void main(String args[]) {
+    System.exit(run(args, Paths.get(""), System.out, System.err));
+  }
 
-    // Ensure that we are called with a single argument.
-    if (args.length != 1) {
-      System.err.println("Usage: flispcc <SourceFile>");
-      System.exit(1);
-    }
-
-    final String srcFile   = args[0];                // Ex: path/to/file.cc
-    final String fileCore  = stripSuffix(srcFile);   // Ex: path/to/file
-    final String dir       = stripFileName(srcFile); // Ex: path/to  or "."
-    final String className = stripPath(fileCore);    // Ex:         file
-    final String out       = fileCore + ".flisp";    // Ex: path/to/file.flisp
-    final String assembler = "qaflisp";              // will look for assembler in $PATH 
+  /* Runs one command line with files relative to dir, returns the
+   * exit status. The daemon runs the requests of clients here too. */
+  public static int run(String args[], Path dir, PrintStream out, PrintStream err) {
 
-    CLexer  l = null;
+    CLI cli = new CLI();
     try {
-
-      // Parse
-      Reader input;
-      if (args.length == 0)input = new InputStreamReader(System.in);
-      else input = new FileReader(args[0]);
-      l = new CLexer(new ANTLRInputStream(input));
-              l.addErrorListener(new BNFCErrorListener());
-    } catch(IOException e) {
-      System.err.println("Error: File not found: " + args[0]);
-      System.exit(1);
+      cli.parse(args);
+    } catch (org.apache.commons.cli.ParseException e) {
+      err.println(e.getMessage());
+      cli.usage(out);
+      return 1;
     }
 
-    CParser p = new CParser(new CommonTokenStream(l));
-            p.addErrorListener(new BNFCErrorListener());
-    
-    // Get ast from parser        
-    Program ast = p.program().result;
-
-    // Type check
-    Program typedTree = new TypeChecker().typecheck(ast);
+    if (cli.has("daemon")) {
+      try {
+        new Daemon(Client.address(cli.value("socket"), cli.value("port"))).serve();
+      } catch (IOException | NumberFormatException e) {
+        err.println(e.toString());
+      }
+      return 1;
+    }
 
-    // Compile into assembler code
-    String jtext = new Compiler().compile(className, typedTree);
-    
-    // Write .j file to same directory where source file was.
-    try {
-      PrintWriter writer = new PrintWriter(out);
-      writer.print(jtext);
-      writer.close();
-    } catch (FileNotFoundException e) {
-      System.err.println(e);
+    // Ensure that we are called with a single file, or any in batch and watch mode.
+    int files = cli.files().length;
+    boolean many = cli.has("batch") || cli.has("watch");
+    if (cli.has("help") || files == 0 || (files != 1 && !many)) {
+      cli.usage(out);
+      return cli.has("help") ? 0 : 1;
     }
 
-    // Don't know if neccessary
-    System.out.println(String.format("Compilation successful. Output file: %s", out));
+    // Totals in JMX for long runs
+    if (cli.has("batch"))
+      Stats.register();
 
-    // Call the assembler
-    Runtime rt = Runtime.getRuntime();
-    Process ps = null;
+    Driver driver;
     try {
+      driver = new Driver(cli, dir, out, err);
+    } catch (IllegalArgumentException e) {
+      err.println(e.toString());
+      return 1;
+    }
+    if (cli.has("watch")) {
       try {
-        ps = rt.exec(String.format("%s %s", assembler, out));
-      } catch(IOException e) {
-        System.err.println("Error: Could not find qaflisp (assembler) in PATH. Exiting..");
-        System.exit(1);
+        new Watcher(driver, dir, cli.files(), out).run();
+      } catch (IOException | InterruptedException e) {
+        err.println(e.toString());
       }
-      
-      // Print messages from assembler process
-      InputStream in = ps.getInputStream();
-      int x = -1;
-      while((x = in.read()) != -1) {
-        System.out.print((char) x);
-      } 
-    }
-    catch (TypeException e) {
-      System.out.println("TYPE ERROR");
-      System.err.println(e.toString());
-      System.exit(1);
-    }
-    catch (RuntimeException e) {
-      System.err.println(String.format("Compiler error: %s", e.getMessage()));
-      System.err.println(e.toString());
-      System.exit(1);
+      return 1;
     }
-    catch (IOException e) {
-      System.err.println(e.toString());
-      System.exit(1);
+
+    if (!cli.has("batch")) {
+      Driver.Status s = driver.compile(cli.files()[0]);
+      if (driver.cache != null)
+        out.print(driver.cache.stats());
+      return s == Driver.Status.OK ? 0 : 1;
     }
-    catch (Throwable e) {
-      System.out.println("SYNTAX ERROR");
-      //System.out.println("At line " + String.valueOf(l.line_num())
-        //         + ", near \"" + l.buff() + "\" :");
-      System.out.println("     " + e.getMessage());
-      //e.printStackTrace();
-      System.exit(1);
+
+    // Every file gets compiled, errors are counted for the summary
+    try {
+      int jobs = cli.has("jobs") ? Integer.parseInt(cli.value("jobs"))
+                                 : Runtime.getRuntime().availableProcessors();
+      driver.compileAll(Driver.sources(dir, cli.files()), jobs);
+    } catch (IOException | NumberFormatException e) {
+      err.println(e.toString());
+      return 1;
     }
+    out.print(driver.summary());
+    err.print(driver.totals());
+    if (driver.cache != null)
+      out.print(driver.cache.stats());
+    return driver.allOk() ? 0 : 1;
   }
 
   // From Test.java
@@ -162,29 +141,4 @@ public class Main {
     System.out.println(PrettyPrinter.print(ast));
     return ast;
   }*/
-
-
-
-  // Utilities
-  ///////////////////////////////////////////////////////////////////////////
-
-  // Remove path from a file name.
-  private static String stripPath(String name) {
-    return new File(name).getName();
-  }
-
-  // Retain just the path from a file name.
-  // Returns "." if there was no path.
-  private static String stripFileName(String name) {
-    String dir = new File(name).getParent();
-    if (dir == null) dir = ".";
-    return dir;
-  }
-
-  // Remove extension from a file name (keep the path).
-  private static String stripSuffix(String filename) {
-    int divider = filename.lastIndexOf('.');
-    if (divider <= 0) return filename;
-    else return filename.substring(0, divider);
-  }
 }
@@ -0,0 +1,258 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.*;
+import java.util.*;
+import javax.management.*;
+import compiler.PhaseEvent;
+
+/* Where the time of compiling goes, flispcc --stats.
+ *
+ * Every phase of a file, from reading the source to writing the .s19,
+ * gets its wall time, the CPU time of the thread and the bytes it
+ * allocated, from the ThreadMXBean. Phases are measured one after the
+ * other with start(), the next start ends the one before. Counters say
+ * how big the file was: AST nodes, instructions, labels and the deepest
+ * stack of a function.
+ *
+ * CPU time and allocation are those of the thread compiling the file.
+ * A program with many functions has them compiled on the common pool,
+ * which shows as wall time longer than CPU time in the compile phase.
+ *
+ * Stats of files are added up per Driver for batch mode, and for the
+ * whole JVM in TOTAL, which register() makes a JMX MXBean.
+ *
+ * Every phase is also a PhaseEvent for Java Flight Recorder, whether
+ * the Stats are on or not.
+ * */
+public class Stats implements StatsMXBean {
+  static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  // Every file of this JVM, in JMX once registered
+  static final Stats TOTAL = new Stats("total", true);
+  static boolean registered;
+
+  final String file;
+  final boolean on;          // off costs nothing but the object
+  long files;
+
+  // Keyed by phase, in the order phases first ran
+  final Map<String, long[]> phases = new LinkedHashMap<>();   // wall, cpu, bytes
+  final Map<String, Long> counters = new LinkedHashMap<>();
+
+  // JFR event of the phase, null when nothing records it
+  PhaseEvent event;
+
+  // Phase being measured and where it started
+  String current;
+  long wall;
+  long cpu;
+  long bytes;
+
+  public Stats(String file, boolean on) {
+    this.file = file;
+    this.on = on;
+  }
+
+  public static synchronized void register() {
+    if (registered)
+      return;
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+        .registerMBean(TOTAL, new ObjectName("flispcc:type=Stats"));
+      registered = true;
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static synchronized boolean registered() {
+    return registered;
+  }
+
+  /* Ends the phase being measured and starts phase */
+  public void start(String phase) {
+    end();
+    PhaseEvent e = new PhaseEvent();
+    if (e.isEnabled()) {
+      e.file = file;
+      e.phase = phase;
+      e.begin();
+      event = e;
+    }
+    if (!on)
+      return;
+    current = phase;
+    cpu = cpuTime();
+    bytes = allocated();
+    wall = System.nanoTime();
+  }
+
+  public void end() {
+    if (event != null) {
+      event.commit();
+      event = null;
+    }
+    if (!on || current == null)
+      return;
+    long w = System.nanoTime() - wall;
+    long[] p = phases.computeIfAbsent(current, k -> new long[3]);
+    p[0] += w;
+    p[1] += cpuTime() - cpu;
+    p[2] += allocated() - bytes;
+    current = null;
+  }
+
+  public void count(String counter, long n) {
+    if (on)
+      counters.merge(counter, n, Long::sum);
+  }
+
+  /* Counters like the deepest stack, which are not summed */
+  public void max(String counter, long n) {
+    if (on)
+      counters.merge(counter, n, Math::max);
+  }
+
+  static long cpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+  }
+
+  static long allocated() {
+    return THREADS.isThreadAllocatedMemorySupported()
+      ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+  }
+
+  /* Adds the phases and counters of a file */
+  public synchronized void add(Stats s) {
+    if (!s.on)
+      return;
+    files += Math.max(s.files, 1);
+    for (Map.Entry<String, long[]> e : s.phases.entrySet()) {
+      long[] p = phases.computeIfAbsent(e.getKey(), k -> new long[3]);
+      for (int i = 0; i < 3; i++)
+        p[i] += e.getValue()[i];
+    }
+    for (Map.Entry<String, Long> e : s.counters.entrySet()) {
+      if (e.getKey().equals("peak stack"))
+        counters.merge(e.getKey(), e.getValue(), Math::max);
+      else
+        counters.merge(e.getKey(), e.getValue(), Long::sum);
+    }
+  }
+
+  /*=============== AST size ================ */
+
+  static final ClassValue<Field[]> FIELDS = new ClassValue<Field[]>() {
+    protected Field[] computeValue(Class<?> c) {
+      List<Field> fs = new ArrayList<>();
+      for (Field f : c.getFields())
+        if (!Modifier.isStatic(f.getModifiers()) && !f.getType().isPrimitive())
+          fs.add(f);
+      return fs.toArray(new Field[0]);
+    }
+  };
+
+  /* Nodes of a tree of C.Absyn, found by reflection so that a new
+   * node type needs no visitor here. Lists are not nodes. */
+  public static long nodes(Object o) {
+    if (o instanceof List) {
+      long n = 0;
+      for (Object e : (List<?>)o)
+        n += nodes(e);
+      return n;
+    }
+    if (o == null || !o.getClass().getName().startsWith("C.Absyn."))
+      return 0;
+    long n = 1;
+    try {
+      for (Field f : FIELDS.get(o.getClass()))
+        n += nodes(f.get(o));
+    } catch (IllegalAccessException e) {
+      // Only public fields are read
+    }
+    return n;
+  }
+
+  /*=============== Output ================ */
+
+  public synchronized String text() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("stats %s%s\n", file, files > 1 ? String.format(", %d files", files) : ""));
+    sb.append(String.format("  %-14s %10s %10s %10s\n", "phase", "wall ms", "cpu ms", "alloc KB"));
+    long[] sum = new long[3];
+    for (Map.Entry<String, long[]> e : phases.entrySet()) {
+      long[] p = e.getValue();
+      sb.append(String.format("  %-14s %10.2f %10.2f %10d\n", e.getKey(), p[0] / 1e6, p[1] / 1e6, p[2] / 1024));
+      for (int i = 0; i < 3; i++)
+        sum[i] += p[i];
+    }
+    sb.append(String.format("  %-14s %10.2f %10.2f %10d\n", "total", sum[0] / 1e6, sum[1] / 1e6, sum[2] / 1024));
+    StringJoiner c = new StringJoiner(", ", "  ", "\n");
+    for (Map.Entry<String, Long> e : counters.entrySet())
+      c.add(e.getKey() + " " + e.getValue());
+    if (!counters.isEmpty())
+      sb.append(c.toString());
+    return sb.toString();
+  }
+
+  /* One line of JSON, times in nanoseconds */
+  public synchronized String json() {
+    StringBuilder sb = new StringBuilder("{\"file\":").append(quote(file));
+    sb.append(",\"files\":").append(Math.max(files, 1));
+    sb.append(",\"phases\":{");
+    String sep = "";
+    for (Map.Entry<String, long[]> e : phases.entrySet()) {
+      long[] p = e.getValue();
+      sb.append(sep).append(quote(e.getKey()))
+        .append(String.format(":{\"wall_ns\":%d,\"cpu_ns\":%d,\"bytes\":%d}", p[0], p[1], p[2]));
+      sep = ",";
+    }
+    sb.append("},\"counters\":{");
+    sep = "";
+    for (Map.Entry<String, Long> e : counters.entrySet()) {
+      sb.append(sep).append(quote(e.getKey())).append(':').append(e.getValue());
+      sep = ",";
+    }
+    return sb.append("}}").toString();
+  }
+
+  static String quote(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (char ch : s.toCharArray()) {
+      if (ch == '"' || ch == '\\')
+        sb.append('\\').append(ch);
+      else if (ch < ' ')
+        sb.append(String.format("\\u%04x", (int)ch));
+      else
+        sb.append(ch);
+    }
+    return sb.append('"').toString();
+  }
+
+  /*=============== StatsMXBean ================ */
+
+  public synchronized long getFiles() {
+    return files;
+  }
+
+  public Map<String, Long> getWallNanos()      { return column(0); }
+  public Map<String, Long> getCpuNanos()       { return column(1); }
+  public Map<String, Long> getAllocatedBytes() { return column(2); }
+
+  public synchronized Map<String, Long> getCounters() {
+    return new LinkedHashMap<>(counters);
+  }
+
+  public synchronized void reset() {
+    files = 0;
+    phases.clear();
+    counters.clear();
+  }
+
+  synchronized Map<String, Long> column(int i) {
+    Map<String, Long> m = new LinkedHashMap<>();
+    for (Map.Entry<String, long[]> e : phases.entrySet())
+      m.put(e.getKey(), e.getValue()[i]);
+    return m;
+  }
+}
@@ -0,0 +1,13 @@
+import java.util.Map;
+
+/* Totals of every file compiled in this JVM, seen in JMX as
+ * flispcc:type=Stats while a daemon or batch runs. Times are in
+ * nanoseconds and keyed by phase, see Stats. */
+public interface StatsMXBean {
+  long getFiles();
+  Map<String, Long> getWallNanos();
+  Map<String, Long> getCpuNanos();
+  Map<String, Long> getAllocatedBytes();
+  Map<String, Long> getCounters();
+  void reset();
+}
@@ -0,0 +1,96 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/* Compiles sources again when they change, flispcc --watch.
+ *
+ * The sources are named as in batch mode. The directories they are in
+ * are registered with a WatchService. Editors save in bursts of
+ * events, so after the first event the watcher waits until nothing
+ * has happened for QUIET_MS before it compiles. Only sources that
+ * changed are compiled, incrementally and in the same warm JVM, and
+ * the time of every rebuild is printed. Runs until killed.
+ *
+ * When the WatchService drops events it says so with an overflow,
+ * and which files changed is lost. Then every source in that
+ * directory is compiled again.
+ * */
+public class Watcher {
+  static final long QUIET_MS = 50;
+
+  final Driver driver;
+  final Path dir;
+  final String[] args;
+  final PrintStream out;
+  final WatchService service;
+  final Set<Path> watched = new HashSet<>();
+
+  public Watcher(Driver driver, Path dir, String[] args, PrintStream out) throws IOException {
+    this.driver = driver;
+    this.dir = dir;
+    this.args = args;
+    this.out = out;
+    service = FileSystems.getDefault().newWatchService();
+  }
+
+  public void run() throws IOException, InterruptedException {
+    List<String> files = Driver.sources(dir, args);
+    build(files, files);
+    while (true) {
+      Set<Path> changed = new HashSet<>();
+      Set<Path> lost = new TreeSet<>();   // directories that overflowed
+      collect(service.take(), changed, lost);
+      WatchKey key;
+      while ((key = service.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null)
+        collect(key, changed, lost);
+      for (Path d : lost)
+        out.println("[watch] events lost in " + d + ", rebuilding all its files");
+
+      // Sources may have been added or removed
+      files = Driver.sources(dir, args);
+      List<String> affected = new ArrayList<>();
+      for (String f : files)
+        if (changed.contains(path(f)) || lost.contains(path(f).getParent()))
+          affected.add(f);
+      if (!affected.isEmpty())
+        build(files, affected);
+    }
+  }
+
+  /* Sources that an event of key is about, or its directory if
+   * events were lost */
+  void collect(WatchKey key, Set<Path> changed, Set<Path> lost) {
+    Path d = (Path)key.watchable();
+    for (WatchEvent<?> e : key.pollEvents()) {
+      if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+        lost.add(d.toAbsolutePath().normalize());
+        continue;
+      }
+      Path name = (Path)e.context();
+      if (Driver.SOURCES.matches(name))
+        changed.add(d.resolve(name).toAbsolutePath().normalize());
+    }
+    key.reset();
+  }
+
+  void build(List<String> files, List<String> affected) throws IOException {
+    for (String f : files) {
+      Path parent = path(f).getParent();
+      if (watched.add(parent))
+        parent.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+    long start = System.nanoTime();
+    int failed = 0;
+    for (String f : affected)
+      if (driver.compile(f) != Driver.Status.OK)
+        failed++;
+    out.println(String.format("[watch] %d of %d files rebuilt in %.1f ms, %d failed",
+          affected.size(), files.size(), (System.nanoTime() - start) / 1e6, failed));
+  }
+
+  Path path(String file) {
+    return dir.resolve(file).toAbsolutePath().normalize();
+  }
+}
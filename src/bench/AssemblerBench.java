@@ -0,0 +1,43 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import C.Absyn.*;
+import compiler.Assembler;
+import compiler.Assembly;
+import compiler.Compiler;
+import optimizer.ConstantFolder;
+import optimizer.DeadCodeEliminator;
+import typechecker.TypeChecker;
+
+/* The in-process assembler on the tiny program, the only one of the
+ * corpus that fits in FLISP memory.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssemblerBench {
+
+  Assembly asm;
+
+  @Setup
+  public void setup() {
+    Program p = Corpus.parse(Corpus.lexer(), Corpus.parser(), Corpus.source("tiny"));
+    p = new TypeChecker().typecheck(p);
+    p = new ConstantFolder().fold(p);
+    p = new DeadCodeEliminator().eliminate(p);
+    asm = new Compiler().generate("bench", p);
+  }
+
+  /* Both passes and the .s19 text */
+  @Benchmark
+  public String assemble() throws IOException {
+    StringWriter s19 = new StringWriter();
+    new Assembler(asm).writeS19(s19);
+    return s19.toString();
+  }
+}
@@ -0,0 +1,54 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import C.Absyn.*;
+import compiler.Assembly;
+import compiler.Compiler;
+import optimizer.ConstantFolder;
+import optimizer.DeadCodeEliminator;
+import typechecker.TypeChecker;
+
+/* Code generation of the corpus, from a type checked and optimized
+ * tree to FLISP instructions, and to the text of the .flisp file.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBench {
+
+  @Param({"small", "medium", "large", "huge"})
+  String size;
+
+  Program typed;
+
+  @Setup
+  public void setup() {
+    Program ast = Corpus.parse(Corpus.lexer(), Corpus.parser(), Corpus.source(size));
+    typed = new TypeChecker().typecheck(ast);
+    typed = new ConstantFolder().fold(typed);
+    typed = new DeadCodeEliminator().eliminate(typed);
+  }
+
+  /* Compiler, load elimination and peephole pass */
+  @Benchmark
+  public Assembly generate() {
+    return new Compiler().generate("bench", typed);
+  }
+
+  /* Same and the assembler text, as Compiler.compile gives it */
+  @Benchmark
+  public String compile() {
+    return new Compiler().compile("bench", typed);
+  }
+
+  /* Without load elimination and peephole pass, as --no-optimize */
+  @Benchmark
+  public Assembly generateUnoptimized() {
+    return new Compiler(null, null).generate("bench", typed);
+  }
+}
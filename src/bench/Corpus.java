@@ -0,0 +1,53 @@
+package bench;
+
+import org.antlr.v4.runtime.*;
+import C.*;
+import C.Absyn.*;
+
+/* Programs the benchmarks compile, from small to very large.
+ *
+ * Every size is a Generator program of a fixed number of functions
+ * and a fixed seed, so runs on different commits compile the same
+ * input. The tiny one is cut down until it fits in FLISP memory.
+ * */
+public class Corpus {
+  static final long SEED = 1;
+
+  /* Functions per size */
+  public static int functions(String size) {
+    switch (size) {
+      case "tiny":   return 1;
+      case "small":  return 4;
+      case "medium": return 32;
+      case "large":  return 256;
+      case "huge":   return 2048;
+    }
+    throw new IllegalArgumentException("No such size: " + size);
+  }
+
+  public static String source(String size) {
+    Generator g = new Generator(SEED).functions(functions(size));
+    if (size.equals("tiny"))
+      g.statements(2).depth(1).chain(2).globals(1);
+    return g.program();
+  }
+
+  /* Lexer and parser as Driver keeps them, one per thread */
+  public static CLexer lexer() {
+    CLexer lexer = new CLexer(null);
+    lexer.removeErrorListeners();
+    return lexer;
+  }
+
+  public static CParser parser() {
+    CParser parser = new CParser(null);
+    parser.removeErrorListeners();
+    return parser;
+  }
+
+  public static Program parse(CLexer lexer, CParser parser, String source) {
+    lexer.setInputStream(new ANTLRInputStream(source));
+    parser.setTokenStream(new CommonTokenStream(lexer));
+    return parser.program().result;
+  }
+}
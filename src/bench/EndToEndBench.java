@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import C.*;
+import C.Absyn.*;
+import compiler.Assembly;
+import compiler.Compiler;
+import optimizer.ConstantFolder;
+import optimizer.DeadCodeEliminator;
+import typechecker.TypeChecker;
+
+/* Source text to .flisp text, the steps Main takes for one file.
+ *
+ * Files are written to memory, so disk speed is not measured. Only
+ * the tiny program fits in the 256 bytes of FLISP memory, the
+ * assembler is measured on it in AssemblerBench.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBench {
+
+  @Param({"small", "medium", "large", "huge"})
+  String size;
+
+  String source;
+  CLexer lexer;
+  CParser parser;
+
+  @Setup
+  public void setup() {
+    source = Corpus.source(size);
+    lexer = Corpus.lexer();
+    parser = Corpus.parser();
+  }
+
+  Assembly frontToBack() {
+    Program p = Corpus.parse(lexer, parser, source);
+    p = new TypeChecker().typecheck(p);
+    p = new ConstantFolder().fold(p);
+    p = new DeadCodeEliminator().eliminate(p);
+    return new Compiler().generate("bench", p);
+  }
+
+  @Benchmark
+  public String compile() {
+    StringWriter flisp = new StringWriter();
+    frontToBack().writeTo(flisp);
+    return flisp.toString();
+  }
+}
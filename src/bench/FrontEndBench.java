@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.*;
+import org.openjdk.jmh.annotations.*;
+import C.*;
+import C.Absyn.*;
+import typechecker.TypeChecker;
+
+/* Lexing, parsing and type checking of the corpus.
+ *
+ * The lexer and parser are reused between invocations, as a batch or
+ * daemon thread reuses them, so the ANTLR DFA cache is warm and what
+ * is measured is the steady state.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBench {
+
+  @Param({"small", "medium", "large", "huge"})
+  String size;
+
+  String source;
+  CLexer lexer;
+  CParser parser;
+  Program ast;
+
+  @Setup
+  public void setup() {
+    source = Corpus.source(size);
+    lexer = Corpus.lexer();
+    parser = Corpus.parser();
+    ast = Corpus.parse(lexer, parser, source);
+  }
+
+  /* CLexer only, the number of tokens is returned */
+  @Benchmark
+  public int lex() {
+    lexer.setInputStream(new ANTLRInputStream(source));
+    int n = 0;
+    while (lexer.nextToken().getType() != Token.EOF)
+      n++;
+    return n;
+  }
+
+  /* CLexer and CParser, to the abstract syntax tree */
+  @Benchmark
+  public Program parse() {
+    return Corpus.parse(lexer, parser, source);
+  }
+
+  /* TypeChecker on a tree parsed once, it only sets the types */
+  @Benchmark
+  public Program typecheck() {
+    return new TypeChecker().typecheck(ast);
+  }
+}
@@ -0,0 +1,276 @@
+package bench;
+
+import java.io.*;
+import java.util.*;
+
+/* Random but well typed programs of the grammar in C.cf, for load
+ * tests and for the benchmark corpus.
+ *
+ * The same seed and knobs give the same program on every JVM, only
+ * java.util.Random is drawn from. Programs have global declarations,
+ * functions with parameters, nested if/else and while, long chains of
+ * + and - and of || and &&, and calls. Only functions defined before
+ * are called and every loop counts down a counter nothing else
+ * assigns, so programs end, but a large one may run for very long.
+ *
+ * Knobs:
+ *   functions    functions besides main, the size of the program
+ *   statements   statements in a function body, nested blocks have
+ *                one to three so size does not grow with depth
+ *   depth        how deep if/else and while nest
+ *   chain        operands in an arithmetic or logic chain
+ *   identifiers  locals and parameters of a function
+ *   globals      global variables
+ *
+ * Run as java bench.Generator [--seed n] [--functions n] ... [file],
+ * --help for all the options.
+ * */
+public class Generator {
+  final Random random;
+  int functions = 16;
+  int statements = 6;
+  int depth = 3;
+  int chain = 8;
+  int identifiers = 8;
+  int globals = 4;
+
+  // State while one function is written
+  StringBuilder sb;
+  int[] arity;
+  int current;             // function being written
+  int locals;              // names declared in it so far
+  int counters;            // loop counters declared in it so far
+  List<String> vars;       // in scope and assignable
+  List<String> readable;   // in scope, with loop counters
+
+  public Generator(long seed) {
+    random = new Random(seed);
+  }
+
+  public Generator functions(int n)   { functions = Math.max(n, 1); return this; }
+  public Generator statements(int n)  { statements = Math.max(n, 1); return this; }
+  public Generator depth(int n)       { depth = Math.max(n, 0); return this; }
+  public Generator chain(int n)       { chain = Math.max(n, 1); return this; }
+  public Generator identifiers(int n) { identifiers = Math.max(n, 1); return this; }
+  public Generator globals(int n)     { globals = Math.max(n, 1); return this; }
+
+  public String program() {
+    sb = new StringBuilder();
+    sb.append("int ");
+    for (int i = 0; i < globals; i++)
+      sb.append(i == 0 ? "" : ", ").append("g").append(i);
+    sb.append(";\n\n");
+
+    arity = new int[functions];
+    for (int i = 0; i < functions; i++)
+      arity[i] = random.nextInt(Math.min(4, identifiers + 1));
+    for (current = 0; current < functions; current++)
+      function();
+
+    // Calls the last functions, which call the ones before them
+    sb.append("int main() {\n  int r = 0;\n");
+    vars = new ArrayList<>(Arrays.asList("r"));
+    readable = new ArrayList<>(vars);
+    for (int i = Math.max(0, functions - 4); i < functions; i++)
+      sb.append("  r = r + ").append(call(i)).append(";\n");
+    sb.append("  return r;\n}\n");
+    return sb.toString();
+  }
+
+  void function() {
+    vars = new ArrayList<>();
+    for (int i = 0; i < globals; i++)
+      vars.add("g" + i);
+    sb.append("int f").append(current).append("(");
+    for (int i = 0; i < arity[current]; i++) {
+      sb.append(i == 0 ? "" : ", ").append("int p").append(i);
+      vars.add("p" + i);
+    }
+    sb.append(") {\n");
+    readable = new ArrayList<>(vars);
+    locals = arity[current];
+    counters = 0;
+    block(1, depth, statements);
+    indent(1).append("return ").append(arith(chain)).append(";\n");
+    sb.append("}\n\n");
+  }
+
+  /* Statements of one block, what it declares goes out of scope after */
+  void block(int indent, int depth, int n) {
+    int v = vars.size();
+    int r = readable.size();
+    for (int i = 0; i < n; i++)
+      statement(indent, depth);
+    vars.subList(v, vars.size()).clear();
+    readable.subList(r, readable.size()).clear();
+  }
+
+  void statement(int indent, int depth) {
+    int choice = random.nextInt(depth > 0 ? 7 : 5);
+    switch (choice) {
+      case 0:
+        if (locals < identifiers) {
+          String id = "v" + locals++;
+          indent(indent).append("int ").append(id).append(" = ").append(arith(chain)).append(";\n");
+          vars.add(id);
+          readable.add(id);
+          return;
+        }
+        // Fall through, enough names
+      case 1:
+        indent(indent).append(pick(vars)).append(" = ").append(arith(chain)).append(";\n");
+        return;
+      case 2:
+        if (current > 0) {
+          indent(indent).append(call(random.nextInt(current))).append(";\n");
+          return;
+        }
+        // Fall through, nothing to call
+      case 3:
+        indent(indent).append(pick(vars)).append(random.nextBoolean() ? "++" : "--").append(";\n");
+        return;
+      case 4:
+        indent(indent).append(pick(vars)).append(" = ").append(pick(readable))
+          .append(random.nextBoolean() ? " * " : " / ").append(1 + random.nextInt(9)).append(";\n");
+        return;
+      case 5:
+        indent(indent).append("if (").append(logic(chain)).append(") {\n");
+        block(indent + 1, depth - 1, 1 + random.nextInt(3));
+        indent(indent).append("} else {\n");
+        block(indent + 1, depth - 1, 1 + random.nextInt(3));
+        indent(indent).append("}\n");
+        return;
+      default:
+        String n = "n" + counters++;
+        indent(indent).append("int ").append(n).append(" = ").append(1 + random.nextInt(3)).append(";\n");
+        indent(indent).append("while (").append(n).append(" > 0 && ").append(comparison()).append(") {\n");
+        readable.add(n);
+        block(indent + 1, depth - 1, 1 + random.nextInt(3));
+        indent(indent + 1).append(n).append("--;\n");
+        indent(indent).append("}\n");
+    }
+  }
+
+  /* Chain of n terms joined by + and - */
+  String arith(int n) {
+    StringBuilder e = new StringBuilder(term());
+    for (int i = 1; i < n; i++)
+      e.append(random.nextBoolean() ? " + " : " - ").append(term());
+    return e.toString();
+  }
+
+  String term() {
+    switch (random.nextInt(8)) {
+      case 0:
+        return Integer.toString(random.nextInt(100));
+      case 1:
+        return pick(readable) + (random.nextBoolean() ? " * " : " / ") + (1 + random.nextInt(9));
+      case 2:
+        if (current > 0)
+          return call(random.nextInt(current));
+        return pick(readable);
+      case 3:
+        return "(" + arith(Math.max(1, chain / 4)) + ")";
+      default:
+        return pick(readable);
+    }
+  }
+
+  /* Chain of n comparisons joined by || and && */
+  String logic(int n) {
+    StringBuilder e = new StringBuilder(comparison());
+    for (int i = 1; i < n; i++)
+      e.append(random.nextBoolean() ? " || " : " && ").append(comparison());
+    return e.toString();
+  }
+
+  static final String[] COMPARISONS = { " < ", " > ", " <= ", " >= ", " == ", " != " };
+
+  String comparison() {
+    return pick(readable) + COMPARISONS[random.nextInt(COMPARISONS.length)]
+      + (random.nextBoolean() ? pick(readable) : Integer.toString(random.nextInt(100)));
+  }
+
+  String call(int f) {
+    StringBuilder e = new StringBuilder("f").append(f).append("(");
+    for (int i = 0; i < arity[f]; i++)
+      e.append(i == 0 ? "" : ", ").append(random.nextBoolean() ? pick(readable) : random.nextInt(100));
+    return e.append(")").toString();
+  }
+
+  String pick(List<String> ids) {
+    return ids.get(random.nextInt(ids.size()));
+  }
+
+  StringBuilder indent(int n) {
+    for (int i = 0; i < n; i++)
+      sb.append("  ");
+    return sb;
+  }
+
+  static final List<String> KNOBS = Arrays.asList(
+      "seed", "functions", "statements", "depth", "chain", "identifiers", "globals");
+
+  static void usage(PrintStream out) {
+    out.println("usage: java bench.Generator [--seed n] [--functions n] [--statements n]"
+        + " [--depth n] [--chain n] [--identifiers n] [--globals n] [file]");
+    out.println("Writes a program to file, or to stdout without one.");
+  }
+
+  /* Prints why and the usage, and ends with status 1 */
+  static void fail(String why) {
+    System.err.println(why);
+    usage(System.err);
+    System.exit(1);
+  }
+
+  public static void main(String args[]) throws IOException {
+    String file = null;
+    Map<String, Long> knobs = new LinkedHashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      String a = args[i];
+      if (a.equals("-h") || a.equals("--help")) {
+        usage(System.out);
+        return;
+      }
+      if (!a.startsWith("-")) {
+        if (file != null)
+          fail("Only one file: " + file + " and " + a);
+        file = a;
+        continue;
+      }
+      String knob = a.replaceFirst("^--?", "");
+      if (!KNOBS.contains(knob))
+        fail("No such option: " + a);
+      if (i + 1 == args.length)
+        fail("No value for " + a);
+      try {
+        String v = args[++i];
+        knobs.put(knob, knob.equals("seed") ? Long.parseLong(v) : Integer.parseInt(v));
+      } catch (NumberFormatException e) {
+        fail("Not a number for " + a + ": " + args[i]);
+      }
+    }
+
+    Generator g = new Generator(knobs.getOrDefault("seed", 1L));
+    for (Map.Entry<String, Long> k : knobs.entrySet()) {
+      int n = k.getValue().intValue();
+      switch (k.getKey()) {
+        case "functions":   g.functions(n); break;
+        case "statements":  g.statements(n); break;
+        case "depth":       g.depth(n); break;
+        case "chain":       g.chain(n); break;
+        case "identifiers": g.identifiers(n); break;
+        case "globals":     g.globals(n); break;
+      }
+    }
+    String program = g.program();
+    if (file == null) {
+      System.out.print(program);
+    } else {
+      try (Writer w = new BufferedWriter(new FileWriter(file))) {
+        w.write(program);
+      }
+    }
+  }
+}
@@ -0,0 +1,412 @@
+package compiler;
+
+import java.io.*;
+import java.util.*;
+
+/* Two-pass FLISP assembler working on the instructions of an Assembly.
+ *
+ * The first pass places everything the way qaflisp does: ORG sets the
+ * address (its digits are hex), RMB reserves bytes and every
+ * instruction takes the size Cost gives it. Labels of functions, jumps
+ * and variables get their addresses. The second pass encodes opcodes
+ * and operands into a 256 byte image. Branches are relative to the
+ * next instruction, JSR and JMP take an absolute address.
+ *
+ * The image is written as Motorola S-records, S1 data records and an
+ * S9 record with the address of main. Reserved bytes are not part of
+ * the image.
+ * */
+public class Assembler {
+  public static final int MEMORY = 256;
+
+  // Addressing modes, columns of OPCODES
+  public static final int INH = 0, IMM = 1, ABS = 2, NS = 3, REL = 4;
+
+  /* Opcodes of the FLISP instructions the compiler uses, -1 where a
+   * mode does not exist. Order: inherent, #Data, Adr, n,SP, relative. */
+  static final Map<String, int[]> OPCODES = new HashMap<>();
+  static {
+    op("NOP",   0x00,   -1,   -1,   -1,   -1);
+    op("NEGA",  0x06,   -1,   -1,   -1,   -1);
+    op("INCA",  0x07,   -1,   -1,   -1,   -1);
+    op("DECA",  0x08,   -1,   -1,   -1,   -1);
+    op("TSTA",  0x09,   -1,   -1,   -1,   -1);
+    op("LSLA",  0x0B,   -1,   -1,   -1,   -1);
+    op("LSRA",  0x0C,   -1,   -1,   -1,   -1);
+    op("ROLA",  0x0D,   -1,   -1,   -1,   -1);
+    op("ASRA",  0x0F,   -1,   -1,   -1,   -1);
+    op("PSHA",  0x10,   -1,   -1,   -1,   -1);
+    op("PSHX",  0x11,   -1,   -1,   -1,   -1);
+    op("PSHY",  0x12,   -1,   -1,   -1,   -1);
+    op("PULA",  0x14,   -1,   -1,   -1,   -1);
+    op("PULX",  0x15,   -1,   -1,   -1,   -1);
+    op("PULY",  0x16,   -1,   -1,   -1,   -1);
+    op("RTS",   0x43,   -1,   -1,   -1,   -1);
+    op("BRA",     -1,   -1,   -1,   -1, 0x21);
+    op("BEQ",     -1,   -1,   -1,   -1, 0x24);
+    op("BNE",     -1,   -1,   -1,   -1, 0x25);
+    op("BCS",     -1,   -1,   -1,   -1, 0x28);
+    op("BCC",     -1,   -1,   -1,   -1, 0x29);
+    op("BGT",     -1,   -1,   -1,   -1, 0x2C);
+    op("BGE",     -1,   -1,   -1,   -1, 0x2D);
+    op("BLE",     -1,   -1,   -1,   -1, 0x2E);
+    op("BLT",     -1,   -1,   -1,   -1, 0x2F);
+    op("JMP",     -1,   -1, 0x33,   -1,   -1);
+    op("JSR",     -1,   -1, 0x34,   -1,   -1);
+    op("NEG",     -1,   -1, 0x36, 0x46,   -1);
+    op("INC",     -1,   -1, 0x37, 0x47,   -1);
+    op("DEC",     -1,   -1, 0x38, 0x48,   -1);
+    op("LSL",     -1,   -1, 0x3B, 0x4B,   -1);
+    op("LSR",     -1,   -1, 0x3C, 0x4C,   -1);
+    op("ROL",     -1,   -1, 0x3D, 0x4D,   -1);
+    op("ASR",     -1,   -1, 0x3F, 0x4F,   -1);
+    op("STX",     -1,   -1, 0x30, 0x40,   -1);
+    op("STY",     -1,   -1, 0x31, 0x41,   -1);
+    op("LDX",     -1, 0x90, 0x91, 0x92,   -1);
+    op("LDY",     -1, 0xA0, 0xA1, 0xA2,   -1);
+    op("SUBA",    -1, 0x95, 0xA5, 0xB5,   -1);
+    op("ADDA",    -1, 0x97, 0xA7, 0xB7,   -1);
+    op("CMPA",    -1, 0x99, 0xA9, 0xB9,   -1);
+    op("CMPX",    -1, 0x9C, 0xAC, 0xBC,   -1);
+    op("CMPY",    -1, 0x9D, 0xAD, 0xBD,   -1);
+    op("LEASP",   -1,   -1,   -1, 0xBF,   -1);
+    op("LEAX",    -1,   -1,   -1, 0xCC,   -1);
+    op("LEAY",    -1,   -1,   -1, 0xCD,   -1);
+    op("STA",     -1,   -1, 0xE1, 0xE2,   -1);
+    op("LDA",     -1, 0xF0, 0xF1, 0xF2,   -1);
+  }
+
+  static void op(String mnemonic, int... modes) {
+    OPCODES.put(mnemonic, modes);
+  }
+
+  /* Opcode of mnemonic in mode, -1 if there is none. The test
+   * checks every one against the FLISP instruction list. */
+  public static int opcode(String mnemonic, int mode) {
+    int[] modes = OPCODES.get(mnemonic);
+    return modes == null ? -1 : modes[mode];
+  }
+
+  public static Set<String> mnemonics() {
+    return new TreeSet<>(OPCODES.keySet());
+  }
+
+  /* Opcode of instruction c, -1 for labels, comments and directives */
+  static int opcode(Code c) {
+    return c.accept(OPCODE);
+  }
+
+  static final CodeVisitor<Integer> OPCODE = new Opcode();
+
+  /* The mnemonic and mode of every instruction, as the Encoder names them */
+  static class Opcode implements CodeVisitor<Integer> {
+    Integer operand(String mnemonic, Addressable a) {
+      switch(a.m) {
+        case INHERENT:  return opcode(mnemonic + a.reg, INH);
+        case IMMEDIATE: return opcode(mnemonic, IMM);
+        case ABSOLUTE:  return opcode(mnemonic, ABS);
+        case NS:        return opcode(mnemonic, NS);
+      }
+      return -1;
+    }
+
+    public Integer visit(Comment c)   { return -1; }
+    public Integer visit(Target c)    { return -1; }
+    public Integer visit(VarTarget c) { return c.code.accept(this); }
+    public Integer visit(Org c)       { return -1; }
+    public Integer visit(Rmb c)       { return -1; }
+    public Integer visit(Pull c)      { return opcode("PUL" + c.reg, INH); }
+    public Integer visit(Push c)      { return opcode("PSH" + c.reg, INH); }
+    public Integer visit(Add c)       { return operand("ADDA", c); }
+    public Integer visit(Sub c)       { return operand("SUBA", c); }
+    public Integer visit(Return c)    { return opcode("RTS", INH); }
+    public Integer visit(Load c)      { return operand("LD" + c.reg, c); }
+    public Integer visit(Store c)     { return operand("ST" + c.reg, c); }
+    public Integer visit(Leasp c)     { return opcode("LEASP", NS); }
+    public Integer visit(Lea c)       { return opcode("LEA" + c.reg, NS); }
+    public Integer visit(Test c)      { return opcode("TSTA", INH); }
+    public Integer visit(Nop c)       { return opcode("NOP", INH); }
+    public Integer visit(Cmp c)       { return operand("CMP" + c.reg, c); }
+    public Integer visit(Inc c)       { return operand("INC", c); }
+    public Integer visit(Dec c)       { return operand("DEC", c); }
+    public Integer visit(Lsl c)       { return operand("LSL", c); }
+    public Integer visit(Lsr c)       { return operand("LSR", c); }
+    public Integer visit(Asr c)       { return operand("ASR", c); }
+    public Integer visit(Rol c)       { return operand("ROL", c); }
+    public Integer visit(Neg c)       { return operand("NEG", c); }
+    public Integer visit(Beq c)       { return opcode("BEQ", REL); }
+    public Integer visit(Bge c)       { return opcode("BGE", REL); }
+    public Integer visit(Bgt c)       { return opcode("BGT", REL); }
+    public Integer visit(Ble c)       { return opcode("BLE", REL); }
+    public Integer visit(Blt c)       { return opcode("BLT", REL); }
+    public Integer visit(Bne c)       { return opcode("BNE", REL); }
+    public Integer visit(Bcc c)       { return opcode("BCC", REL); }
+    public Integer visit(Bcs c)       { return opcode("BCS", REL); }
+    public Integer visit(Bra c)       { return opcode("BRA", REL); }
+    public Integer visit(Jsr c)       { return opcode("JSR", ABS); }
+    public Integer visit(Jmp c)       { return opcode("JMP", ABS); }
+  }
+
+  // Assembled program, -1 where nothing is placed
+  final int[] image = new int[MEMORY];
+  final Map<String, Integer> symbols = new LinkedHashMap<>();
+  final Map<Label, Integer> labels = new HashMap<>();
+  int entry = -1;
+
+  public Assembler(Assembly asm) {
+    ArrayList<Code> all = new ArrayList<>(asm.globals);
+    for(FuncCode f : asm.functions)
+      all.addAll(f.code);
+    Arrays.fill(image, -1);
+    place(all);
+    encode(all);
+  }
+
+  /*=============== First pass ================ */
+
+  void place(ArrayList<Code> all) {
+    int address = 0;
+    for(Code c : all) {
+      if(c instanceof Org) {
+        address = Simulator.org((Org)c);
+      } else if(c instanceof VarTarget) {
+        VarTarget t = (VarTarget)c;
+        define(t.id, address);
+        address += size(t.code);
+      } else if(c instanceof Target) {
+        Label l = ((Target)c).label;
+        if(labels.put(l, address) != null)
+          throw new RuntimeException("Label defined twice: " + l);
+        if(l instanceof IdLabel)
+          define(l.toString(), address);
+      } else {
+        address += size(c);
+      }
+      if(address > MEMORY)
+        throw new RuntimeException("Program does not fit in memory");
+    }
+    Integer main = labels.get(new IdLabel("main"));
+    if(main != null)
+      entry = main;
+  }
+
+  void define(String id, int address) {
+    if(symbols.put(id, address) != null)
+      throw new RuntimeException("Symbol defined twice: " + id);
+  }
+
+  static int size(Code c) {
+    return c instanceof Rmb ? ((Rmb)c).bytes : Cost.bytes(c);
+  }
+
+  /*=============== Second pass ================ */
+
+  void encode(ArrayList<Code> all) {
+    Encoder e = new Encoder();
+    for(Code c : all) {
+      if(c instanceof Org)
+        e.address = Simulator.org((Org)c);
+      else if(c instanceof Rmb)
+        e.address += ((Rmb)c).bytes;
+      else if(c instanceof VarTarget)
+        ((VarTarget)c).code.accept(e);
+      else
+        c.accept(e);
+    }
+  }
+
+  /* Writes the bytes of one instruction at address */
+  class Encoder implements CodeVisitor<Void> {
+    int address;
+
+    void put(int b) {
+      if(image[address] != -1)
+        throw new RuntimeException(String.format("Code overlaps at $%02X", address));
+      image[address++] = b & 0xFF;
+    }
+
+    int opcode(String mnemonic, int mode) {
+      int op = Assembler.opcode(mnemonic, mode);
+      if(op < 0)
+        throw new RuntimeException("No such instruction: " + mnemonic + " in mode " + mode);
+      return op;
+    }
+
+    Void inherent(String mnemonic) {
+      put(opcode(mnemonic, INH));
+      return null;
+    }
+
+    /* Instructions like LDA, ADDA or INC with an operand */
+    Void operand(String mnemonic, Addressable a) {
+      switch(a.m) {
+        case INHERENT:
+          put(opcode(mnemonic + a.reg, INH));
+          break;
+        case IMMEDIATE:
+          put(opcode(mnemonic, IMM));
+          put(a.data);
+          break;
+        case ABSOLUTE:
+          put(opcode(mnemonic, ABS));
+          put(a.label != null && !a.label.isEmpty() ? symbol(a.label) : a.address);
+          break;
+        case NS:
+          put(opcode(mnemonic, NS));
+          put(a.index);
+          break;
+      }
+      return null;
+    }
+
+    /* Mnemonics that name the register, LDA/LDX/LDY */
+    Void withReg(String mnemonic, Addressable a) {
+      return operand(mnemonic + a.reg, a);
+    }
+
+    Void branch(String mnemonic, Label l) {
+      put(opcode(mnemonic, REL));
+      int offset = target(l) - (address + 1);
+      if(offset < -128 || offset > 127)
+        throw new RuntimeException("Branch out of range: " + mnemonic + " " + l);
+      put(offset);
+      return null;
+    }
+
+    Void jump(String mnemonic, Label l) {
+      put(opcode(mnemonic, ABS));
+      put(target(l));
+      return null;
+    }
+
+    int target(Label l) {
+      Integer t = labels.get(l);
+      if(t == null)
+        throw new RuntimeException("Undefined label: " + l);
+      return t;
+    }
+
+    int symbol(String id) {
+      Integer s = symbols.get(id);
+      if(s == null)
+        throw new RuntimeException("Undefined symbol: " + id);
+      return s;
+    }
+
+    public Void visit(Comment c)   { return null; }
+    public Void visit(Target c)    { return null; }
+    public Void visit(VarTarget c) { return null; }
+    public Void visit(Org c)       { return null; }
+    public Void visit(Rmb c)       { return null; }
+    public Void visit(Pull c)      { return inherent("PUL" + c.reg); }
+    public Void visit(Push c)      { return inherent("PSH" + c.reg); }
+    public Void visit(Add c)       { return operand("ADDA", c); }
+    public Void visit(Sub c)       { return operand("SUBA", c); }
+    public Void visit(Return c)    { return inherent("RTS"); }
+    public Void visit(Load c)      { return withReg("LD", c); }
+    public Void visit(Store c)     { return withReg("ST", c); }
+    public Void visit(Test c)      { return inherent("TSTA"); }
+    public Void visit(Nop c)       { return inherent("NOP"); }
+    public Void visit(Cmp c)       { return withReg("CMP", c); }
+    public Void visit(Inc c)       { return operand("INC", c); }
+    public Void visit(Dec c)       { return operand("DEC", c); }
+    public Void visit(Lsl c)       { return operand("LSL", c); }
+    public Void visit(Lsr c)       { return operand("LSR", c); }
+    public Void visit(Asr c)       { return operand("ASR", c); }
+    public Void visit(Rol c)       { return operand("ROL", c); }
+    public Void visit(Neg c)       { return operand("NEG", c); }
+    public Void visit(Beq c)       { return branch("BEQ", c.label); }
+    public Void visit(Bge c)       { return branch("BGE", c.label); }
+    public Void visit(Bgt c)       { return branch("BGT", c.label); }
+    public Void visit(Ble c)       { return branch("BLE", c.label); }
+    public Void visit(Blt c)       { return branch("BLT", c.label); }
+    public Void visit(Bne c)       { return branch("BNE", c.label); }
+    public Void visit(Bcc c)       { return branch("BCC", c.label); }
+    public Void visit(Bcs c)       { return branch("BCS", c.label); }
+    public Void visit(Bra c)       { return branch("BRA", c.label); }
+    public Void visit(Jsr c)       { return jump("JSR", c.label); }
+    public Void visit(Jmp c)       { return jump("JMP", c.label); }
+
+    public Void visit(Leasp c) {
+      put(opcode("LEASP", NS));
+      put(c.index);
+      return null;
+    }
+
+    public Void visit(Lea c) {
+      put(opcode("LEA" + c.reg, NS));
+      put(c.index);
+      return null;
+    }
+  }
+
+  /*=============== Output ================ */
+
+  /* Byte at address, -1 if nothing is placed there */
+  public int byteAt(int address) {
+    return image[address];
+  }
+
+  public Map<String, Integer> symbols() {
+    return Collections.unmodifiableMap(symbols);
+  }
+
+  /* S1 records of at most 16 bytes for each run of placed bytes,
+   * then S9 with the entry address */
+  public void writeS19(Writer w) throws IOException {
+    int a = 0;
+    while(a < MEMORY) {
+      if(image[a] == -1) {
+        a++;
+        continue;
+      }
+      int start = a;
+      while(a < MEMORY && image[a] != -1 && a - start < 16)
+        a++;
+      record(w, '1', start, Arrays.copyOfRange(image, start, a));
+    }
+    record(w, '9', Math.max(entry, 0), new int[0]);
+  }
+
+  static void record(Writer w, char type, int address, int[] data) throws IOException {
+    int count = data.length + 3;
+    int sum = count + (address >> 8) + (address & 0xFF);
+    StringBuilder sb = new StringBuilder(String.format("S%c%02X%04X", type, count, address));
+    for(int b : data) {
+      sb.append(String.format("%02X", b));
+      sum += b;
+    }
+    sb.append(String.format("%02X\n", ~sum & 0xFF));
+    w.write(sb.toString());
+  }
+
+  /* Image described by the S1 records of an S-record file */
+  public static int[] readS19(Reader r) throws IOException {
+    int[] mem = new int[MEMORY];
+    Arrays.fill(mem, -1);
+    BufferedReader in = new BufferedReader(r);
+    String line;
+    while((line = in.readLine()) != null) {
+      line = line.trim();
+      if(!line.startsWith("S1"))
+        continue;
+      int count = Integer.parseInt(line.substring(2, 4), 16);
+      int address = Integer.parseInt(line.substring(4, 8), 16);
+      for(int i = 0; i < count - 3; i++) {
+        int b = Integer.parseInt(line.substring(8 + 2 * i, 10 + 2 * i), 16);
+        if(address + i < MEMORY)
+          mem[address + i] = b;
+      }
+    }
+    return mem;
+  }
+
+  /* Addresses where other differs from this image, empty if none */
+  public List<Integer> differences(int[] other) {
+    List<Integer> diff = new ArrayList<>();
+    for(int a = 0; a < MEMORY; a++)
+      if(image[a] != other[a])
+        diff.add(a);
+    return diff;
+  }
+}
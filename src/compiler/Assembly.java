@@ -0,0 +1,103 @@
+package compiler;
+
+import java.io.*;
+import java.util.*;
+
+/* Instructions generated for one function, in order. */
+class FuncCode {
+  final String id;
+  final ArrayList<Code> code;
+
+  // Stack depth and locals the function needed, 0 for runtime helpers
+  int stack;
+  int locals;
+
+  FuncCode(String id, ArrayList<Code> code) {
+    this.id   = id;
+    this.code = code;
+  }
+
+  /* Instructions, without labels, comments and directives. */
+  int instructions() {
+    int n = 0;
+    for(Code c : code)
+      if(!(c instanceof Target || c instanceof Comment || c instanceof Org))
+        n++;
+    return n;
+  }
+}
+
+/* Compiled program kept as instructions (Code nodes) until it is
+ * written out. Passes can inspect and rewrite the instructions,
+ * text is only produced by writeTo().
+ * */
+public class Assembly {
+  // Comment block at the top of the file
+  String header = "";
+
+  // ORG and RMB for global variables
+  final ArrayList<Code> globals = new ArrayList<>();
+
+  // Functions in source order
+  final ArrayList<FuncCode> functions = new ArrayList<>();
+
+  /* Number of instructions, labels and comments included. */
+  public int size() {
+    int n = globals.size();
+    for(FuncCode f : functions)
+      n += f.code.size();
+    return n;
+  }
+
+  /* Instructions, without labels, comments and directives. */
+  public int instructions() {
+    int n = 0;
+    for(FuncCode f : functions)
+      n += f.instructions();
+    return n;
+  }
+
+  public int labels() {
+    int n = 0;
+    for(FuncCode f : functions)
+      for(Code c : f.code)
+        if(c instanceof Target)
+          n++;
+    return n;
+  }
+
+  /* Deepest the stack of any function got */
+  public int stackLimit() {
+    int n = 0;
+    for(FuncCode f : functions)
+      n = Math.max(n, f.stack);
+    return n;
+  }
+
+  /* Renders the program as .flisp text. */
+  public void writeTo(Writer w) {
+    Emitter out = new Emitter(w);
+    CodeToAssembler asm = new CodeToAssembler();
+
+    out.append(header);
+    if(!globals.isEmpty()) {
+      for(Code c : globals)
+        asm.render(c, out.buffer());
+      out.append("\n");
+    }
+
+    for(FuncCode f : functions) {
+      for(Code c : f.code) {
+        asm.render(c, out.buffer());
+        out.flush();
+      }
+    }
+    out.finish();
+  }
+
+  public String toString() {
+    StringWriter w = new StringWriter();
+    writeTo(w);
+    return w.toString();
+  }
+}
@@ -1,6 +1,7 @@
 // FLISP instructions are converted into Assembly code
 package compiler;
 
+import java.util.Objects;
 import compiler.FunType;
 import C.Absyn.*;
 
@@ -12,6 +13,18 @@ class Stack {
     this.count = count;
     this.limit = limit;
   }
+
+  void push() { count++; checkLimit(); }
+  void pull() { count--; checkLimit(); }
+
+  void checkLimit() {
+    if(count > limit) {
+      limit = count;
+    }
+
+    if(limit > CodeToAssembler.MAX_STACK_SIZE) 
+      throw new RuntimeException("STACK OVERFLOW.. Exiting compiler.");
+  }
 }
 
 // Variable information (in context)
@@ -19,11 +32,17 @@ class CtxEntry {
   final Type type;
   final Integer addr;
   final boolean global;
+  final String reg;   // X or Y if kept in a register, else null
 
   CtxEntry(Type type, Integer addr, boolean global) {
+    this(type, addr, global, null);
+  }
+
+  CtxEntry(Type type, Integer addr, boolean global, String reg) {
     this.type   = type;
     this.addr   = addr;
     this.global = global;
+    this.reg    = reg;
   }
 }
 
@@ -46,18 +65,38 @@ class IdLabel extends Label {
   public String toString() {
     return label;
   }
+  public boolean equals(Object o) {
+    return o instanceof IdLabel && ((IdLabel)o).label.equals(label);
+  }
+  public int hashCode() {
+    return label.hashCode();
+  }
 }
 
 /* Label for local program flow.
- * If-else and while statements use this.
+ * If-else and while statements use this. Labels are numbered per
+ * function and named after it, f_L0, so functions can be compiled
+ * independently.
  * */
 class IndexedLabel extends Label {
+  public String scope;
   public int index;
   public IndexedLabel (int index) {
+    this(null, index);
+  }
+  public IndexedLabel (String scope, int index) {
+    this.scope = scope;
     this.index = index;
   }
   public String toString() {
-    return "L" + index;
+    return scope == null ? "L" + index : scope + "_L" + index;
+  }
+  public boolean equals(Object o) {
+    return o instanceof IndexedLabel && ((IndexedLabel)o).index == index
+      && Objects.equals(((IndexedLabel)o).scope, scope);
+  }
+  public int hashCode() {
+    return Objects.hash(scope, index);
   }
 }
 
@@ -83,6 +122,7 @@ class Addressable extends Code {
   public int data;
   public int index;
   public String label;
+  public String reg = "A";  // Register for LD, ST and CMP
 
   public Addressable(AddrMethod m, int x) {
     this.m = m;
@@ -108,29 +148,58 @@ class Addressable extends Code {
     this.m = m;
   }
 
+  /* Same instruction on register r. */
+  public Addressable on(String r) {
+    reg = r;
+    return this;
+  }
+
+  /* True if both refer to the same operand. */
+  public boolean sameOperand(Addressable o) {
+    if(m != o.m)
+      return false;
+    switch(m) {
+      case IMMEDIATE:
+        return data == o.data;
+      case ABSOLUTE:
+        if(label == null || o.label == null)
+          return label == o.label && address == o.address;
+        return label.equals(o.label);
+      case NS:
+        return index == o.index;
+    }
+    return true;
+  }
+
   /* Will correctly format instructions
    * and make them easier to use in visitor.
+   * Appends to sb so no strings are built per instruction.
    *
    * postfix is used for instructions e.g.
    * INC Adr can be used as INCA
    * Here the letter 'A' is the postfix.
    * */
-  public String toString(String ins, String postfix) {
+  public void appendTo(StringBuilder sb, String ins, String postfix) {
      switch(m) {
-      case INHERENT: 
-        return String.format("%s%s", ins, postfix);
+      case INHERENT:
+        sb.append(ins).append(postfix).append('\n');
+        break;
       case IMMEDIATE:
-        return String.format("%s\t#%d \n", ins,  data);
+        sb.append(ins).append("\t#").append(data).append(" \n");
+        break;
       case ABSOLUTE:
         // Address can both be label and addr
-        if(label.isEmpty())
-          return String.format("%s\t%d \n", ins, address);
+        sb.append(ins).append('\t');
+        if(label == null || label.isEmpty())
+          sb.append(address);
         else
-          return String.format("%s\t%s \n", ins, label);
+          sb.append(label);
+        sb.append(" \n");
+        break;
       case NS:
-        return String.format("%s\t%d,SP\n", ins, index);
+        sb.append(ins).append('\t').append(index).append(",SP\n");
+        break;
     }
-    return null;
   }
 }
 
@@ -187,6 +256,71 @@ class Dec extends Addressable {
   }
 }
 
+/* Logical shift left, LSLA or LSL n,SP */
+class Lsl extends Addressable {
+  public Lsl(AddrMethod m, int x) {
+    super(m, x);
+  }
+  public Lsl(AddrMethod m) {
+    super(m);
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
+/* Logical shift right */
+class Lsr extends Addressable {
+  public Lsr(AddrMethod m, int x) {
+    super(m, x);
+  }
+  public Lsr(AddrMethod m) {
+    super(m);
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
+/* Arithmetic shift right, keeps the sign */
+class Asr extends Addressable {
+  public Asr(AddrMethod m, int x) {
+    super(m, x);
+  }
+  public Asr(AddrMethod m) {
+    super(m);
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
+/* Rotate left through carry */
+class Rol extends Addressable {
+  public Rol(AddrMethod m, int x) {
+    super(m, x);
+  }
+  public Rol(AddrMethod m) {
+    super(m);
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
+/* Two's complement */
+class Neg extends Addressable {
+  public Neg(AddrMethod m, int x) {
+    super(m, x);
+  }
+  public Neg(AddrMethod m) {
+    super(m);
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
 class Store extends Addressable {
   public Store(AddrMethod m, int x) {
    super(m, x);
@@ -291,6 +425,19 @@ class Org extends Code {
   }
 }
 
+/* LEAX n,X and LEAY n,Y */
+class Lea extends Code {
+  public String reg;
+  public int index;
+  public Lea(String reg, int index) {
+    this.reg = reg;
+    this.index = index;
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
 class Leasp extends Code {
   public int index;
   public Leasp(int index) {
@@ -317,65 +464,86 @@ class Test extends Code {
   }
 }
 
+class Nop extends Code {
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
 /* All branches here */
-class Beq extends Code {
+abstract class Branch extends Code {
   public Label label;
-  public Beq(Label label) {
+  public Branch(Label label) {
     this.label = label;
   }
+}
+class Beq extends Branch {
+  public Beq(Label label) {
+    super(label);
+  }
   public <R> R accept(CodeVisitor<R> v) {
     return v.visit(this);
   }
 }
-class Bge extends Code {
-  public Label label;
+class Bge extends Branch {
   public Bge(Label label) {
-    this.label = label;
+    super(label);
   }
   public <R> R accept(CodeVisitor<R> v) {
     return v.visit(this);
   }
 }
-class Bgt extends Code {
-  public Label label;
+class Bgt extends Branch {
   public Bgt(Label label) {
-    this.label = label;
+    super(label);
   }
   public <R> R accept(CodeVisitor<R> v) {
     return v.visit(this);
   }
 }
-class Ble extends Code {
-  public Label label;
+class Ble extends Branch {
   public Ble(Label label) {
-    this.label = label;
+    super(label);
   }
   public <R> R accept(CodeVisitor<R> v) {
     return v.visit(this);
   }
 }
-class Blt extends Code {
-  public Label label;
+class Blt extends Branch {
   public Blt(Label label) {
-    this.label = label;
+    super(label);
   }
   public <R> R accept(CodeVisitor<R> v) {
     return v.visit(this);
   }
 }
-class Bne extends Code {
-  public Label label;
+class Bne extends Branch {
   public Bne(Label label) {
-    this.label = label;
+    super(label);
   }
   public <R> R accept(CodeVisitor<R> v) {
     return v.visit(this);
   }
 }
-class Bra extends Code {
-  public Label label;
+class Bcc extends Branch {
+  public Bcc(Label label) {
+    super(label);
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+class Bcs extends Branch {
+  public Bcs(Label label) {
+    super(label);
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+class Bra extends Branch {
   public Bra(Label label) {
-    this.label = label;
+    super(label);
   }
   public <R> R accept(CodeVisitor<R> v) {
     return v.visit(this);
@@ -391,6 +559,17 @@ class Jsr extends Code {
   }
 }
 
+/* Jump without return, used for tail calls */
+class Jmp extends Code {
+  public Label label;
+  public Jmp(Label label) {
+    this.label = label;
+  }
+  public <R> R accept(CodeVisitor<R> v) {
+    return v.visit(this);
+  }
+}
+
 interface CodeVisitor<R> { 
   public R visit(Comment c);
   public R visit(Pull c);
@@ -404,8 +583,10 @@ interface CodeVisitor<R> {
   public R visit(Store c);
   public R visit(Org c);
   public R visit(Leasp c);
+  public R visit(Lea c);
   public R visit(Rmb c);
   public R visit(Test c);
+  public R visit(Nop c);
   public R visit(Cmp c);
   public R visit(Inc c);
   public R visit(Dec c);
@@ -415,133 +596,238 @@ interface CodeVisitor<R> {
   public R visit(Ble c);
   public R visit(Blt c);
   public R visit(Bne c);
+  public R visit(Bcc c);
+  public R visit(Bcs c);
+  public R visit(Lsl c);
+  public R visit(Lsr c);
+  public R visit(Asr c);
+  public R visit(Rol c);
+  public R visit(Neg c);
   public R visit(Bra c);
   public R visit(Jsr c);
+  public R visit(Jmp c);
 }
 
-class CodeToAssembler implements CodeVisitor<String> {
-  public final int MAX_STACK_SIZE = 15; // Address 1F-10
-  Stack s;
-  public CodeToAssembler(Stack s) {
-    this.s = s;
+/* Renders instructions as assembler text.
+ * One instance is used for a whole compilation, every
+ * instruction is appended to the builder given to render().
+ * */
+class CodeToAssembler implements CodeVisitor<Void> {
+  public static final int MAX_STACK_SIZE = 15; // Address 1F-10
+
+  // Mnemonics
+  static final String LDA   = "LDA";
+  static final String LDX   = "LDX";
+  static final String LDY   = "LDY";
+  static final String STA   = "STA";
+  static final String STX   = "STX";
+  static final String STY   = "STY";
+  static final String ADDA  = "ADDA";
+  static final String SUBA  = "SUBA";
+  static final String CMPA  = "CMPA";
+  static final String CMPX  = "CMPX";
+  static final String CMPY  = "CMPY";
+  static final String LEA   = "LEA";
+  static final String INC   = "INC";
+  static final String LSL   = "LSL";
+  static final String LSR   = "LSR";
+  static final String ASR   = "ASR";
+  static final String ROL   = "ROL";
+  static final String NEG   = "NEG";
+  static final String DEC   = "DEC";
+  static final String PSH   = "PSH";
+  static final String PUL   = "PUL";
+  static final String LEASP = "LEASP\t";
+  static final String RTS   = "RTS \n";
+  static final String ORG   = "ORG\t\t$";
+  static final String RMB   = "RMB\t\t";
+  static final String TSTA  = "TSTA\n";
+  static final String NOP   = "NOP\n";
+  static final String BEQ   = "BEQ\t\t";
+  static final String BGE   = "BGE\t\t";
+  static final String BGT   = "BGT\t\t";
+  static final String BLE   = "BLE\t\t";
+  static final String BLT   = "BLT\t\t";
+  static final String BNE   = "BNE\t\t";
+  static final String BCC   = "BCC\t\t";
+  static final String BCS   = "BCS\t\t";
+  static final String BRA   = "BRA\t\t";
+  static final String JSR   = "JSR\t\t";
+  static final String JMP   = "JMP\t\t";
+  static final String INDENT = "\t\t";
+
+  StringBuilder sb;
+
+  /* Appends c, indented unless it is a label, to out. */
+  public void render(Code c, StringBuilder out) {
+    sb = out;
+    if(!(c instanceof Target || c instanceof VarTarget))
+      sb.append(INDENT);
+    c.accept(this);
+  }
+
+  /* Mnemonic of the instruction for register r */
+  static String on(String r, String a, String x, String y) {
+    switch(r) {
+      case "X": return x;
+      case "Y": return y;
+    }
+    return a;
   }
 
-  void incStack() { s.count++; checkLimit(); }
-  void decStack() { s.count--; checkLimit(); }
-
-  void checkLimit() {
-    if(s.count > s.limit) {
-      s.limit = s.count;
-    }
+  void branch(String ins, Label l) {
+    sb.append(ins);
+    appendLabel(l);
+    sb.append('\n');
+  }
 
-    if(s.limit > MAX_STACK_SIZE) 
-      throw new RuntimeException("STACK OVERFLOW.. Exiting compiler.");
+  void appendLabel(Label l) {
+    if(l instanceof IndexedLabel) {
+      IndexedLabel i = (IndexedLabel)l;
+      if(i.scope != null)
+        sb.append(i.scope).append('_');
+      sb.append('L').append(i.index);
+    } else
+      sb.append(((IdLabel)l).label);
   }
   
   /* ===== Comment ===== */
-  public String visit(Comment c) {
-    return String.format(";; %s\n", c.comment);
+  public Void visit(Comment c) {
+    sb.append(";; ").append(c.comment).append('\n');
+    return null;
   }
 
-  public String visit(Store c) {
-    return c.toString("STA", null);
+  public Void visit(Store c) {
+    c.appendTo(sb, on(c.reg, STA, STX, STY), null);
+    return null;
   }
 
-  public String visit(Load c) {
-    return c.toString("LDA", null);
+  public Void visit(Load c) {
+    c.appendTo(sb, on(c.reg, LDA, LDX, LDY), null);
+    return null;
   }
 
   /* ===== Integer arithmetic ===== */
-  public String visit(Add c) {
-    return c.toString("ADDA", null);
+  public Void visit(Add c) {
+    c.appendTo(sb, ADDA, null);
+    return null;
   }
 
-  public String visit(Sub c) {
-    return c.toString("SUBA", null);
+  public Void visit(Sub c) {
+    c.appendTo(sb, SUBA, null);
+    return null;
   }
 
   /* ===== Stack operations ====== */
-  public String visit(Push c) {
-    incStack();
-    return String.format("PSH%s \n", c.reg);
+  public Void visit(Push c) {
+    sb.append(PSH).append(c.reg).append(" \n");
+    return null;
   }
 
-  public String visit(Pull c) {
-    decStack();
-    return String.format("PUL%s \n", c.reg);
+  public Void visit(Pull c) {
+    sb.append(PUL).append(c.reg).append(" \n");
+    return null;
   }
 
-  public String visit(Leasp c) {
-    return String.format("LEASP\t%d,SP\n", c.index);
+  public Void visit(Leasp c) {
+    sb.append(LEASP).append(c.index).append(",SP\n");
+    return null;
   }
 
-  public String visit(Inc c) {
-    return c.toString("INC", "A");
+  public Void visit(Lea c) {
+    sb.append(LEA).append(c.reg).append('\t').append(c.index)
+      .append(',').append(c.reg).append('\n');
+    return null;
   }
 
-  public String visit(Dec c) {
-    return c.toString("DEC", "A");
+  public Void visit(Inc c) {
+    c.appendTo(sb, INC, "A");
+    return null;
   }
 
-  public String visit(Target c) {
-    return String.format("%s:\n", c.label.toString());
+  public Void visit(Dec c) {
+    c.appendTo(sb, DEC, "A");
+    return null;
   }
 
-  // Label targetting a code instruction
-  public String visit(VarTarget c) {
-    return String.format("%s:\t%s", c.id, c.code.accept(this));
+  public Void visit(Lsl c) {
+    c.appendTo(sb, LSL, "A");
+    return null;
   }
 
-  /* Return from subroutine */
-  public String visit(Return c) {
-    return "RTS \n";
+  public Void visit(Lsr c) {
+    c.appendTo(sb, LSR, "A");
+    return null;
   }
 
-  public String visit(Org c) {
-    return String.format("ORG\t\t$%d \n", c.address);
+  public Void visit(Asr c) {
+    c.appendTo(sb, ASR, "A");
+    return null;
   }
 
-  public String visit(Rmb c) {
-    return String.format("RMB\t\t%d\n", c.bytes);
+  public Void visit(Rol c) {
+    c.appendTo(sb, ROL, "A");
+    return null;
   }
 
-  public String visit(Test c) {
-    return "TSTA\n";
+  public Void visit(Neg c) {
+    c.appendTo(sb, NEG, "A");
+    return null;
   }
-  
-  public String visit(Cmp c) {
-    return c.toString("CMPA", null);
+
+  public Void visit(Target c) {
+    appendLabel(c.label);
+    sb.append(":\n");
+    return null;
   }
 
-  public String visit(Beq c) {
-    return String.format("BEQ\t\t%s\n", c.label.toString());
+  // Label targetting a code instruction
+  public Void visit(VarTarget c) {
+    sb.append(c.id).append(":\t");
+    c.code.accept(this);
+    return null;
   }
 
-  public String visit(Bge c) {
-    return String.format("BGE\t\t%s\n", c.label.toString());
+  /* Return from subroutine */
+  public Void visit(Return c) {
+    sb.append(RTS);
+    return null;
   }
 
-  public String visit(Bgt c) {
-    return String.format("BGT\t\t%s\n", c.label.toString());
-  } 
-  
-  public String visit(Ble c) {
-    return String.format("BLE\t\t%s\n", c.label.toString());
-  } 
-  
-  public String visit(Blt c) {
-    return String.format("BLT\t\t%s\n", c.label.toString());
+  public Void visit(Org c) {
+    sb.append(ORG).append(c.address).append(" \n");
+    return null;
+  }
+
+  public Void visit(Rmb c) {
+    sb.append(RMB).append(c.bytes).append('\n');
+    return null;
   }
 
-  public String visit(Bne c) {
-    return String.format("BNE\t\t%s\n", c.label.toString());
+  public Void visit(Test c) {
+    sb.append(TSTA);
+    return null;
   }
 
-  public String visit(Bra c) {
-    return String.format("BRA\t\t%s\n", c.label.toString());
+  public Void visit(Nop c) {
+    sb.append(NOP);
+    return null;
   }
   
-  public String visit(Jsr c) {
-    return String.format("JSR\t\t%s\n", c.label.toString());
+  public Void visit(Cmp c) {
+    c.appendTo(sb, on(c.reg, CMPA, CMPX, CMPY), null);
+    return null;
   }
+
+  public Void visit(Beq c) { branch(BEQ, c.label); return null; }
+  public Void visit(Bge c) { branch(BGE, c.label); return null; }
+  public Void visit(Bgt c) { branch(BGT, c.label); return null; }
+  public Void visit(Ble c) { branch(BLE, c.label); return null; }
+  public Void visit(Blt c) { branch(BLT, c.label); return null; }
+  public Void visit(Bne c) { branch(BNE, c.label); return null; }
+  public Void visit(Bcc c) { branch(BCC, c.label); return null; }
+  public Void visit(Bcs c) { branch(BCS, c.label); return null; }
+  public Void visit(Bra c) { branch(BRA, c.label); return null; }
+  public Void visit(Jsr c) { branch(JSR, c.label); return null; }
+  public Void visit(Jmp c) { branch(JMP, c.label); return null; }
 }
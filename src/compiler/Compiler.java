@@ -1,10 +1,13 @@
 package compiler;
 
+import java.io.*;
 import java.util.*;
+import java.util.stream.*;
 import C.Absyn.*;
 import C.PrettyPrinter;
 import compiler.FunType;
 import compiler.Code;
+import typechecker.SymbolTable;
 
 class Func {
   public String id;
@@ -26,8 +29,11 @@ public class Compiler implements
   Stm.Visitor<Void, Void>,
   Exp.Visitor<Void, Exp>
 {
-  // The output of the compiler is a list of strings.
-  LinkedList<String> output;
+  // The output of the compiler, kept as instructions until written.
+  Assembly output;
+
+  // Instructions of the function being compiled
+  ArrayList<Code> code;
 
   // Signature mapping function names to their JVM name and type
   Map<String, Func> sig;
@@ -39,14 +45,34 @@ public class Compiler implements
   // stack size in current function
   Stack stack = new Stack(0, 0);
 
-  // Global counter to for next label
+  // Name given to generate, for FunctionEvent
+  String program;
+
+  // Counter for the next label of the function, named after it
   int nextLabel = 0;
+  String scope;
 
   // Next free address
   int nextLocal = 0;
 
+  // Register of every declaration in the current function, null if
+  // on the stack, see RegisterAllocator
+  String[] allocation;
+  int nextDecl = 0;
+  int nargs = 0;
+
+  // Stack slots of the current function
+  int frame = 0;
+
+  // Epilogue of the current function, where return jumps to
+  Label exit;
+  boolean isMain;
+
+  // Runtime helpers called by the program, see RuntimeLib
+  Set<String> runtime;
+
   // Context mapping variable id to their type and address
-  LinkedList<Map<String, CtxEntry>> ctx;
+  SymbolTable<CtxEntry> ctx;
 
   // Mapping global variable id to their type and address
   // Note: must be in its own map otherwise the local variable count
@@ -58,19 +84,56 @@ public class Compiler implements
   final Type BOOL   = new TBool();
   final Type VOID   = new TVoid();
 
-  // Compile C-- AST to a .j source file (returned as String).
+  // Programs with fewer functions are compiled on one thread
+  static final int PARALLEL_FUNCTIONS = 16;
+
+  // Applied to every function before it is written, null for none
+  final LoadElimination loads;
+  final Peephole peephole;
+
+  public Compiler() {
+    this(new LoadElimination(), new Peephole());
+  }
+
+  public Compiler(LoadElimination loads, Peephole peephole) {
+    this.loads    = loads;
+    this.peephole = peephole;
+  }
+
+  // Instructions of functions that did not change, null for none
+  Incremental incremental;
+
+  /* Reuses what inc kept for functions it did not check again */
+  public Compiler incremental(Incremental inc) {
+    incremental = inc;
+    return this;
+  }
+
+  // Compile C-- AST to a .flisp source file (returned as String).
   // name should be just the class name without file extension.
   public String compile(String name, C.Absyn.Program p) {
+    return generate(name, p).toString();
+  }
+
+  // Compile C-- AST and stream the assembly to w.
+  public void compile(String name, C.Absyn.Program p, Writer w) {
+    generate(name, p).writeTo(w);
+  }
+
+  // Compile C-- AST into instructions, rendered later.
+  public Assembly generate(String name, C.Absyn.Program p) {
     // Initialize output
-    output = new LinkedList();
+    output = new Assembly();
+    program = name;
 
     // Output boilerplate
-    output.add(";;----------------------------------------+\n");
-    output.add(";; flispcc assembly output\n");
-    output.add(";; Command: flispcc ...         \n");
-    output.add(String.format(";; Compiled: %s   \n", new Date()));
-    output.add(";; Author: Karl Strålman        \n");
-    output.add(";;----------------------------------------+\n");
+    output.header =
+        ";;----------------------------------------+\n"
+      + ";; flispcc assembly output\n"
+      + ";; Command: flispcc ...         \n"
+      + String.format(";; Compiled: %s   \n", new Date())
+      + ";; Author: Karl Strålman        \n"
+      + ";;----------------------------------------+\n";
 
     sig = new TreeMap();
 
@@ -96,37 +159,43 @@ public class Compiler implements
     }
     // Initialize global variable storage
     global = new TreeMap<>();
-    
-    LinkedList<String> savedOutput = output;
-    output = new LinkedList();
+    runtime = new TreeSet<>();
 
     // Start compiling program
     compile(p);
 
-    // Fetch new input and add to old
-    LinkedList<String> newOutput = output;
-    output = savedOutput; 
+    // main goes first, at $20 right above the stack. The other
+    // functions follow it instead of overlapping the stack.
+    for(int i = 0; i < output.functions.size(); i++)
+      if(output.functions.get(i).id.equals("main"))
+        output.functions.add(0, output.functions.remove(i));
+
+    if(incremental != null)
+      output.header += incremental.report();
+    if(loads != null) {
+      for(FuncCode f : output.functions)
+        loads.optimize(f.code);
+      output.header += loads.report();
+    }
+    if(peephole != null) {
+      for(FuncCode f : output.functions)
+        peephole.optimize(f.code);
+      output.header += peephole.report();
+    }
+
+    // Only the helpers that are used
+    for(String h : runtime)
+      output.functions.add(new FuncCode(h, RuntimeLib.code(h)));
 
-    
     // Global varibles declared here
     if(getGlobVarCount() > 0) {
-      emit(new Org(0));
+      output.globals.add(new Org(0));
       for(String key : global.keySet()) {
         // This can be extended when strings are implemented (1 byte per character)
-        emit(new VarTarget(key, new Rmb(1)));
+        output.globals.add(new VarTarget(key, new Rmb(1)));
       }
-      output.add("\n");
-    }
-
-    for(String s : newOutput)
-      output.add(s);
-
-    // Concatenate strings in output to .j file content.
-    StringBuilder jtext = new StringBuilder();
-    for (String s: output) {
-      jtext.append(s);
     }
-    return jtext.toString();
+    return output;
   }
 
   /*====(AUX) Compilation and helper functions ====*/
@@ -136,16 +205,40 @@ public class Compiler implements
   public void compile(Stm s) { s.accept(this, null); }
   public void compile(Exp e, Exp a) { e.accept(this, a); }
 
+  /* PrettyPrinter builds its text in a static buffer, so files
+   * compiled on other threads take turns */
+  static String print(Stm s) {
+    synchronized(PrettyPrinter.class) {
+      return PrettyPrinter.print(s);
+    }
+  }
+
+  static String print(Exp e) {
+    synchronized(PrettyPrinter.class) {
+      return PrettyPrinter.print(e);
+    }
+  }
+
   public void emit(Code c) {
-    String formatting = "\t\t";
-    if(c instanceof Target || c instanceof VarTarget)
-      formatting = "";
+    if(c instanceof Push)
+      stack.push();
+    else if(c instanceof Pull)
+      stack.pull();
+    code.add(c);
+  }
+
+  /* Drops n bytes pushed in the body */
+  public void pop(int n) {
+    emit(new Leasp(n));
+    stack.count -= n;
+  }
 
-    output.add(String.format("%s%s",
-          formatting, c.accept(new CodeToAssembler(stack))));
+  /* Offset from SP of a local, pushes since the prologue included */
+  public int addr(CtxEntry e) {
+    return e.addr + stack.count;
   }
   public void pushBlock() {
-    ctx.push(new TreeMap());
+    ctx.push();
   }
   public void popBlock() {
     ctx.pop();
@@ -158,32 +251,188 @@ public class Compiler implements
     if(gVar != null)
       return gVar;
 
-    // Then the local variables from within contexts
-    for(Map<String, CtxEntry> m : ctx) {
-      CtxEntry e = m.get(id);
-      if(e != null)
-        return e;
-    }
-    return null;
+    // Then the innermost local variable of that name
+    return ctx.get(id);
   }
 
   public Func lookupFunc(String id) {
     return sig.get(id);
   }
 
-  /* Adds variable to context map  */
+  /* Adds variable to context map, in the register
+   * or stack slot the allocator gave it */
   public void addVar(String id, Type t) {
-    ctx.peek().put(id, new CtxEntry(t, nextLocal, false));
-    nextLocal++;
+    int d = nextDecl++;
+    if(allocation[d] != null) {
+      ctx.put(id, new CtxEntry(t, null, false, allocation[d]));
+    } else if(d >= RegisterAllocator.REGISTERS.length && d < nargs) {
+      // Pushed by the caller, last one next to the return address
+      ctx.put(id, new CtxEntry(t, frame + nargs - d, false));
+    } else {
+      ctx.put(id, new CtxEntry(t, nextLocal, false));
+      nextLocal++;
+    }
     limitLocals++;
   }
 
+  /* Registers holding variables in scope */
+  public List<String> liveRegisters() {
+    List<String> regs = new ArrayList<>();
+    for(CtxEntry e : ctx.all())
+      if(e.reg != null && !regs.contains(e.reg))
+        regs.add(e.reg);
+    Collections.sort(regs);
+    return regs;
+  }
+
+  /* Instruction kind arg with the literal or variable in memory e
+   * as operand, on register reg. Null if e is anything else. */
+  public Addressable operand(Exp arg, Exp e, String reg) {
+    Code c = null;
+    if(e instanceof EInt)
+      c = arg.accept(new EIntVisitor(), (EInt)e);
+    else if(e instanceof EId && lookupVar(((EId)e).id_).reg == null)
+      c = arg.accept(new EIdVisitor(), (EId)e);
+    return c == null ? null : ((Addressable)c).on(reg);
+  }
+
+  /* Loads e into reg without going through A, null if not possible */
+  public Code loadInto(String reg, Exp e) {
+    if(e instanceof EId && reg.equals(lookupVar(((EId)e).id_).reg))
+      return new Nop();
+    return operand(e, e, reg);
+  }
+
+  /* Stores A in variable id */
+  public void store(String id) {
+    CtxEntry entry = lookupVar(id);
+    if(entry.global) {
+      emit(new Store(AddrMethod.ABSOLUTE, id));
+    } else if(entry.reg != null) {
+      emit(new Push("A"));
+      emit(new Pull(entry.reg));
+    } else {
+      emit(new Store(AddrMethod.NS, addr(entry)));
+    }
+  }
+
+  /* Compares a variable in a register directly, CMPX,
+   * else like any other comparison in A */
+  public void compare(Exp p, Exp e1, Exp e2) {
+    if(e1 instanceof EId) {
+      String reg = lookupVar(((EId)e1).id_).reg;
+      Addressable c = reg == null ? null : operand(p, e2, reg);
+      if(c != null) {
+        emit(c);
+        return;
+      }
+    }
+    compile(e1, e1);
+    applyTo(p, e2);
+  }
+
+  /* Loaded with one operand, no need to compute it first */
+  public static boolean atom(Exp e) {
+    return e instanceof EInt || e instanceof EId;
+  }
+
+  /* Applies operator p to A and e. Anything but an atom is
+   * computed first while the left value waits on the stack. */
+  public void applyTo(Exp p, Exp e) {
+    if(atom(e)) {
+      compile(e, p);
+      return;
+    }
+    emit(new Push("A"));
+    compile(e, e);
+    if(p instanceof EAdd) {
+      emit(new Add(AddrMethod.NS, 0));
+      pop(1);
+    } else if(p instanceof ESub) {
+      // left - right = -right + left
+      emit(new Neg(AddrMethod.INHERENT));
+      emit(new Add(AddrMethod.NS, 0));
+      pop(1);
+    } else {
+      emit(new Push("A"));
+      emit(new Load(AddrMethod.NS, 1));
+      emit(new Cmp(AddrMethod.NS, 0));
+      pop(2);
+    }
+  }
+
+  /* A = A * m with shifts and adds, Horner's rule over the bits
+   * of m. Multiplying by 256 - m and negating is used when that
+   * takes fewer instructions, e.g. for -1 or -3. */
+  public void multiply(int m) {
+    m &= 0xFF;
+    if(m == 0) {
+      emit(new Load(AddrMethod.IMMEDIATE, 0));
+      return;
+    }
+    boolean neg = steps(256 - m) + 1 < steps(m);
+    int k = neg ? 256 - m : m;
+    // A single bit needs no copy of A to add
+    boolean adds = Integer.bitCount(k) > 1;
+    if(adds)
+      emit(new Push("A"));
+    for(int b = 30 - Integer.numberOfLeadingZeros(k); b >= 0; b--) {
+      emit(new Lsl(AddrMethod.INHERENT));
+      if((k >> b & 1) != 0)
+        emit(new Add(AddrMethod.NS, 0));
+    }
+    if(adds)
+      pop(1);
+    if(neg)
+      emit(new Neg(AddrMethod.INHERENT));
+  }
+
+  /* Instructions multiply uses for k */
+  static int steps(int k) {
+    int shifts = 31 - Integer.numberOfLeadingZeros(k);
+    int adds = Integer.bitCount(k) - 1;
+    return shifts + adds + (adds > 0 ? 2 : 0);
+  }
+
+  /* A = A / d rounded toward zero, when d is a power of two
+   * (or minus one). Negative values get d - 1 added first,
+   * since ASRA alone rounds down. Returns false for any other d. */
+  public boolean divide(int d) {
+    int sd = (byte)d;
+    int m = Math.abs(sd);
+    if(sd == 0 || Integer.bitCount(m) != 1)
+      return false;
+    int k = Integer.numberOfTrailingZeros(m);
+    if(k > 0) {
+      Label positive = newLabel();
+      emit(new Test());
+      emit(new Bge(positive));
+      emit(new Add(AddrMethod.IMMEDIATE, m - 1));
+      emit(new Target(positive));
+      for(int i = 0; i < k; i++)
+        emit(new Asr(AddrMethod.INHERENT));
+    }
+    if(sd < 0)
+      emit(new Neg(AddrMethod.INHERENT));
+    return true;
+  }
+
+  /* A = A op e by a runtime helper */
+  public void callRuntime(String helper, Exp e) {
+    runtime.add(helper);
+    emit(new Push("A"));
+    compile(e, e);
+    emit(new Push("A"));
+    emit(new Jsr(new IdLabel(helper)));
+    pop(2);
+  }
+
   public void addGlobal(String id, Type t) {
     global.put(id, new CtxEntry(t, 0, true));
   }
 
   public Label newLabel() {
-    return new IndexedLabel(nextLabel++);
+    return new IndexedLabel(scope, nextLabel++);
   }
 
   public Type arithExp(Exp e1, Exp e2) {
@@ -191,87 +440,191 @@ public class Compiler implements
   }
 
   public int getVarCount() {
-    return ctx.peek().size();
+    return ctx.scopeSize();
   }
 
   public int getGlobVarCount() {
     return global.size();
   }
 
-  // Ugly solution
-  // TODO: Fix this ugly mess
+  /* Branch to done when condition e is false. Comparisons have set
+   * the flags, any other condition is a 0 or 1 in A. */
   public Code branchType(Exp e, Label done) {
     Code c = null;
     if(e instanceof EGt) {
-      c = new Bgt(done);
+      c = new Ble(done);
     } else if(e instanceof ELt) {
+      c = new Bge(done);
+    } else if(e instanceof EGeq) {
       c = new Blt(done);
+    } else if(e instanceof ELEq) {
+      c = new Bgt(done);
     } else if(e instanceof ENeq) {
-      c = new Bne(done);
+      c = new Beq(done);
     } else if(e instanceof EEq) { 
-      c = new Beq(done); 
-    } else if(e instanceof ETrue || e instanceof EFalse) {
+      c = new Bne(done); 
+    } else {
       emit(new Test());
       c = new Beq(done);
+    }
+    return c;
+  }
+
+  /* Branch to l when condition e is true, the opposite of branchType */
+  public Code branchTrue(Exp e, Label l) {
+    Code c = null;
+    if(e instanceof EGt) {
+      c = new Bgt(l);
+    } else if(e instanceof ELt) {
+      c = new Blt(l);
+    } else if(e instanceof EGeq) {
+      c = new Bge(l);
+    } else if(e instanceof ELEq) {
+      c = new Ble(l);
+    } else if(e instanceof ENeq) {
+      c = new Bne(l);
+    } else if(e instanceof EEq) {
+      c = new Beq(l);
     } else {
-      // Error
-      c = new Bra(done);
+      emit(new Test());
+      c = new Bne(l);
     }
     return c;
   }
 
   /*================ Program ===================*/
+
+  /* Globals first, then the functions. A function only reads sig and
+   * global, everything else is its own, so functions are compiled by
+   * separate Compilers, in parallel when there are many. Their code is
+   * put together in source order. */
   public Void visit(Prg p, Void arg) {
-    for(Def d : p.listdef_)
-      compile(d);
+    ArrayList<DFunc> funcs = new ArrayList<>();
+    for(Def d : p.listdef_) {
+      if(d instanceof DFunc)
+        funcs.add((DFunc)d);
+      else
+        compile(d);
+    }
+    Stream<DFunc> s = funcs.size() >= PARALLEL_FUNCTIONS ? funcs.parallelStream() : funcs.stream();
+    List<Compiler> done = s.map(this::function).collect(Collectors.toList());
+    for(Compiler c : done) {
+      output.functions.addAll(c.output.functions);
+      runtime.addAll(c.runtime);
+    }
     return null;
   }
 
+  /* Compiler that has compiled the function p */
+  Compiler function(DFunc p) {
+    FunctionEvent event = new FunctionEvent();
+    event.begin();
+    Compiler c = compileFunction(p);
+    if(event.shouldCommit()) {
+      FuncCode f = c.output.functions.get(0);
+      event.program      = program;
+      event.function     = p.id_;
+      event.instructions = f.instructions();
+      event.locals       = f.locals;
+      event.stack        = f.stack;
+      event.reused       = c.code == null;   // kept code is not compiled into c.code
+      event.commit();
+    }
+    return c;
+  }
+
+  Compiler compileFunction(DFunc p) {
+    Compiler c = new Compiler(null, null);
+    c.output  = new Assembly();
+    c.sig     = sig;
+    c.global  = global;
+    c.runtime = new TreeSet<>();
+    c.scope   = p.id_;
+    FuncCode kept = incremental == null ? null : incremental.code(p, c.runtime);
+    if(kept != null) {
+      c.output.functions.add(kept);
+      return c;
+    }
+    c.compile(p);
+    if(incremental != null)
+      incremental.compiled(p, c.output.functions.get(0), c.runtime);
+    return c;
+  }
+
    /*================ Function defs. ============*/
   public Void visit(DFunc p, Void arg) {
-    ctx = new LinkedList();
-    ctx.push(new TreeMap());
+    ctx = new SymbolTable<>();
+    ctx.push();
 
     // Reset context specific counters
     nextLocal    = 0;
+    nextDecl     = 0;
     limitLocals  = 0;
     stack.count  = 0;
     stack.limit  = 0;
 
-    // Save output from extermination
-    LinkedList<String> savedOutput = output;
-    output = new LinkedList();
-    for(Arg a : p.listarg_)
+    // Frame size is needed before the body to find stack arguments
+    nargs      = p.listarg_.size();
+    allocation = new RegisterAllocator().allocate(p);
+    frame      = RegisterAllocator.frameSize(allocation, nargs);
+
+    exit   = newLabel();
+    isMain = p.id_.equals("main");
+
+    code = new ArrayList<>();
+    ArrayList<CtxEntry> params = new ArrayList<>();
+    for(Arg a : p.listarg_) {
       compile(a);
+      params.add(lookupVar(((ADecl)a).id_));
+    }
     for(Stm s : p.liststm_)
       compile(s);
 
-    // Fetch new input and add to old
-    LinkedList<String> newOutput = output;
-    output = savedOutput; 
-
-    // Add label to subroutine
-    emit(new Target(new IdLabel(p.id_)));
+    // Prologue depends on the locals, put in front of the body
+    ArrayList<Code> prologue = new ArrayList<>();
 
-    // Program starts here
+    // Program starts here, main is the label at the ORG
     if(p.id_.equals("main"))
-      emit(new Org(20));
+      prologue.add(new Org(20));
 
-    // Count local varible size to determine how much space on stack
-    int varsize = getVarCount();
-    if(varsize > 0)
-      emit(new Leasp(-varsize)); //Add
+    // Add label to subroutine
+    prologue.add(new Target(new IdLabel(p.id_)));
 
-    for(String s : newOutput)
-      output.add(s);
+    // Stack slots for everything not in a register
+    int varsize = frame;
+    if(varsize > 0)
+      prologue.add(new Leasp(-varsize)); //Add
+
+    // First arguments arrive in X and Y, the rest on the stack
+    for(int j = 0; j < params.size(); j++) {
+      CtxEntry e = params.get(j);
+      if(j < RegisterAllocator.REGISTERS.length) {
+        if(e.reg == null)
+          prologue.add(new Store(AddrMethod.NS, e.addr).on(RegisterAllocator.REGISTERS[j]));
+      } else if(e.reg != null) {
+        prologue.add(new Load(AddrMethod.NS, frame + nargs - j).on(e.reg));
+      }
+    }
+    code.addAll(0, prologue);
 
     // Adjust stack after function
+    emit(new Target(exit));
     if(varsize > 0)
       emit(new Leasp(varsize));
 
-    // Since main is entry point, we cannot use RTS
-    if(!p.id_.equals("main"))
+    // Since main is entry point, we cannot use RTS.
+    // It ends in a branch to itself instead.
+    if(!isMain) {
       emit(new Return());
+    } else {
+      Label stop = newLabel();
+      emit(new Target(stop));
+      emit(new Bra(stop));
+    }
+    FuncCode f = new FuncCode(p.id_, code);
+    f.stack  = stack.limit;
+    f.locals = limitLocals;
+    output.functions.add(f);
     return null;
   }
 
@@ -302,14 +655,14 @@ public class Compiler implements
   public Void visit(ADecl p, Void arg) {
     addVar(p.id_, p.type_);
     CtxEntry entry = lookupVar(p.id_);
-    //emit(new Comment(PrettyPrinter.print(p)));
+    //emit(new Comment(print(p)));
     //emit(new Load(AddrMethod.NS, entry.addr));
     return null;
    }
 
   /*==================== Statements ====================*/
   public Void visit(SDecls p, Void arg) {
-    emit(new Comment(PrettyPrinter.print(p)));
+    emit(new Comment(print(p)));
     for(String id: p.listid_) {
       if(!p.type_.equals(VOID))
         addVar(id, p.type_);
@@ -318,16 +671,38 @@ public class Compiler implements
   }
 
   public Void visit(SInit p, Void arg) {
-    emit(new Comment(PrettyPrinter.print(p)));
+    emit(new Comment(print(p)));
+    String reg = allocation[nextDecl];
+    Code c = reg == null ? null : loadInto(reg, p.exp_);
+    if(c != null) {
+      emit(c);
+      addVar(p.id_, p.type_);
+      return null;
+    }
     compile(p.exp_, p.exp_);
     addVar(p.id_, p.type_);
-    CtxEntry entry = lookupVar(p.id_);
-    emit(new Store(AddrMethod.NS, entry.addr));
+    store(p.id_);
     return null;
   }
 
   public Void visit(SExp p, Void arg) {
-    emit(new Comment(PrettyPrinter.print(p.exp_)));
+    emit(new Comment(print(p.exp_)));
+    // The value is not used, registers are updated in place
+    String id = RegisterAllocator.stepped(p.exp_);
+    if(id != null && lookupVar(id).reg != null) {
+      boolean up = p.exp_ instanceof EIncr || p.exp_ instanceof EPIncr;
+      emit(new Lea(lookupVar(id).reg, up ? 1 : -1));
+      return null;
+    }
+    if(p.exp_ instanceof EAss) {
+      EAss a = (EAss)p.exp_;
+      String reg = lookupVar(a.id_).reg;
+      Code c = reg == null ? null : loadInto(reg, a.exp_);
+      if(c != null) {
+        emit(c);
+        return null;
+      }
+    }
     compile(p.exp_, p.exp_);
     return null;
   }
@@ -336,53 +711,29 @@ public class Compiler implements
     Label lfalse = newLabel();
     Label end = newLabel();
 
-    emit(new Comment("test if-condition (" + PrettyPrinter.print(p.exp_) + ")\n"));
+    emit(new Comment("test if-condition (" + print(p.exp_) + ")\n"));
     compile(p.exp_, p.exp_);
     //TODO: Implement the different branches here 
     emit(branchType(p.exp_, lfalse));
-    emit(new Comment("when (" + PrettyPrinter.print(p.exp_) + ") do: \n"));
+    emit(new Comment("when (" + print(p.exp_) + ") do: \n"));
     pushBlock();
-     // Save output from extermination
-    LinkedList<String> savedOutput = output;
-    output = new LinkedList();
-
     compile(p.stm_1);
-
-     // Must do this for scoping
-    LinkedList<String> newOutput = output;
-    output = savedOutput;
- 
     // Local variables in scope
     //TODO: fungerar inte som det ska 
     //emit(new Leasp(-getVarCount())); 
-    for(String s : newOutput)
-      output.add(s);
-   // emit(new Leasp(getVarCount()));
-
+    //emit(new Leasp(getVarCount()));
     popBlock();
     emit(new Bra(end));
-    emit(new Comment("unless (" + PrettyPrinter.print(p.exp_) + ") do: \n"));
+    emit(new Comment("unless (" + print(p.exp_) + ") do: \n"));
     emit(new Target(lfalse));
     pushBlock();
-    
-    savedOutput = output;
-    output = new LinkedList();
-
     compile(p.stm_2);
-
-    // Must do this for scoping
-    newOutput = output;
-    output = savedOutput;
-
     // Local variables in scope
     //emit(new Leasp(-getVarCount())); 
-    for(String s : newOutput)
-      output.add(s);
     //emit(new Leasp(getVarCount()));
-
     popBlock();
     emit(new Target(end));
-    output.add("\t\tNOP\n"); // kanske inte behövs
+    emit(new Nop()); // kanske inte behövs
     return null;
   }
 
@@ -406,15 +757,18 @@ public class Compiler implements
     Label start = newLabel();
     Label done  = newLabel();
 
-    emit(new Comment("test while-condition (" + PrettyPrinter.print(p.exp_) + ")\n"));
+    emit(new Comment("test while-condition (" + print(p.exp_) + ")\n"));
      // Start label (eg. L0)
     emit(new Target(start));
-    //Check condition
-    compile(p.exp_, p.exp_);
-    // Compare and jump to "done" if equal
-    emit(branchType(p.exp_, done));
+    // Endless loop needs no test
+    if(!(p.exp_ instanceof ETrue)) {
+      //Check condition
+      compile(p.exp_, p.exp_);
+      // Compare and jump to "done" if equal
+      emit(branchType(p.exp_, done));
+    }
     // newblock with more work
-    emit(new Comment("while (" + PrettyPrinter.print(p.exp_) + ") do:\n"));
+    emit(new Comment("while (" + print(p.exp_) + ") do:\n"));
     pushBlock();
     compile(p.stm_);
     popBlock();
@@ -424,12 +778,31 @@ public class Compiler implements
     return null;
   }
 
-  // Is added manually in DFunc visit() 
+  /* Value in A, the epilogue is shared and added in DFunc visit().
+   * A call as the last thing a function does jumps to the callee
+   * instead, which returns straight to our caller. */
   public Void visit(SReturn p, Void arg) {
+    emit(new Comment(print(p)));
+    if(p.exp_ instanceof ECall && tailCall((ECall)p.exp_))
+      return null;
     compile(p.exp_, p.exp_);
+    emit(new Bra(exit));
     return null;
   }
 
+  /* Only for callees that take all arguments in registers, the
+   * arguments our caller pushed are dropped by our caller. main has
+   * no caller to return to. */
+  public boolean tailCall(ECall p) {
+    if(isMain || p.listexp_.size() > RegisterAllocator.REGISTERS.length)
+      return false;
+    passArguments(p);
+    if(frame > 0)
+      emit(new Leasp(frame));
+    emit(new Jmp(new IdLabel(p.id_)));
+    return true;
+  }
+
   /* ==================== Expressions ==================== */
 
   /* Literals */
@@ -448,9 +821,23 @@ public class Compiler implements
     return null;
   }
 
-  /* Variable */
+  /* Variable
+   * One in a register is pushed, so the instruction
+   * can use it as 0,SP. */
   public Void visit(EId p, Exp arg) {
-    emit(arg.accept(new EIdVisitor(), p));
+    String reg = lookupVar(p.id_).reg;
+    if(reg == null) {
+      emit(arg.accept(new EIdVisitor(), p));
+      return null;
+    }
+    emit(new Push(reg));
+    Code c = arg.accept(new EIdVisitor(), p);
+    if(c instanceof Load) {
+      emit(new Pull("A"));
+    } else {
+      emit(c);
+      emit(new Pull(reg));
+    }
     return null;
   }
 
@@ -460,92 +847,107 @@ public class Compiler implements
       compile(p.exp_1, arg);
     else
       compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
-		return null;
+    applyTo(p, p.exp_2);
+    return null;
   }
   public Void visit(ESub p, Exp arg) {
     if(!(arg instanceof ESub))
       compile(p.exp_1, arg);
     else
       compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
-		return null;
+    applyTo(p, p.exp_2);
+    return null;
   }
+  /* Multiplication and division
+   * By constants inline, otherwise through RuntimeLib.
+   * */
   public Void visit(EMul p, Exp arg) {
-    throw new RuntimeException("Multiplication not yet supported.");
+    Exp e1 = p.exp_1, e2 = p.exp_2;
+    // Constant last, literals have no side effects to reorder
+    if(e1 instanceof EInt) {
+      e1 = p.exp_2;
+      e2 = p.exp_1;
+    }
+    compile(e1, e1);
+    if(e2 instanceof EInt)
+      multiply(((EInt)e2).integer_);
+    else
+      callRuntime(RuntimeLib.MUL, e2);
+    return null;
   }
   public Void visit(EDiv p, Exp arg) {
-    throw new RuntimeException("Divide not yet supported");
+    compile(p.exp_1, p.exp_1);
+    if(!(p.exp_2 instanceof EInt && divide(((EInt)p.exp_2).integer_)))
+      callRuntime(RuntimeLib.DIV, p.exp_2);
+    return null;
   }
 
   /* Logic operations
-   * leaves 1 or 0 on register A when compiled
-   * TODO: Still needs testing
+   * leaves 1 or 0 on register A when compiled. An operand that
+   * is a comparison only sets the flags, A may hold anything
+   * after it, so every operand is branched on with branchType.
    * */
   public Void visit(EOr p, Exp arg) {
     Label ltrue = newLabel();
-    emit(new Comment(PrettyPrinter.print(p)));
-    emit(new Load(AddrMethod.IMMEDIATE, 1));
+    Label lfalse = newLabel();
+    emit(new Comment(print(p)));
     // Lazy eval
-    compile(p.exp_1, p);
-    emit(new Test());
-    emit(new Bne(ltrue));
+    compile(p.exp_1, p.exp_1);
+    emit(branchTrue(p.exp_1, ltrue));
     // Eval next exp
-    compile(p.exp_2, p);
-    emit(new Test());
-    emit(new Bne(ltrue));
-    //FALSE
-    emit(new Load(AddrMethod.IMMEDIATE, 0));
-    emit(new Target(ltrue));
+    compile(p.exp_2, p.exp_2);
+    emit(branchType(p.exp_2, lfalse));
+    logicValue(ltrue, lfalse);
 		return null;
   }
   public Void visit(EAnd p, Exp arg) {
+    Label ltrue = newLabel();
     Label lfalse = newLabel();
-    emit(new Comment(PrettyPrinter.print(p)));
-    emit(new Load(AddrMethod.IMMEDIATE, 0));
+    emit(new Comment(print(p)));
     // Lazy eval
-    compile(p.exp_1, p);
-    emit(new Test());
-    emit(new Beq(lfalse));
+    compile(p.exp_1, p.exp_1);
+    emit(branchType(p.exp_1, lfalse));
     // Eval next exp
-    compile(p.exp_2, p);
-    emit(new Test());
-    emit(new Beq(lfalse));
-    //FALSE
+    compile(p.exp_2, p.exp_2);
+    emit(branchType(p.exp_2, lfalse));
+    logicValue(ltrue, lfalse);
+		return null;
+  }
+
+  /* 1 in A from ltrue, 0 from lfalse */
+  public void logicValue(Label ltrue, Label lfalse) {
+    Label done = newLabel();
+    emit(new Target(ltrue));
     emit(new Load(AddrMethod.IMMEDIATE, 1));
+    emit(new Bra(done));
     emit(new Target(lfalse));
-		return null;
+    emit(new Load(AddrMethod.IMMEDIATE, 0));
+    emit(new Target(done));
   }
 
   public Void visit(ELt p, Exp arg) {
-    compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
+    compare(p, p.exp_1, p.exp_2);
     return null;
   }
 
   public Void visit(EGt p, Exp arg) {
-    compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
+    compare(p, p.exp_1, p.exp_2);
     return null;
   }
   public Void visit(ENeq p, Exp arg) {
-    compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
+    compare(p, p.exp_1, p.exp_2);
     return null;
   }
   public Void visit(EEq p, Exp arg) {
-    compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
+    compare(p, p.exp_1, p.exp_2);
     return null;
   }
   public Void visit(EGeq p, Exp arg) {
-    compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
+    compare(p, p.exp_1, p.exp_2);
     return null;
   }
   public Void visit(ELEq p, Exp arg) {
-    compile(p.exp_1, p.exp_1);
-    compile(p.exp_2, p);
+    compare(p, p.exp_1, p.exp_2);
     return null;
   }
   public Void visit(EDecr p, Exp arg) {
@@ -553,65 +955,112 @@ public class Compiler implements
     if(x.global) {
       emit(new Dec(AddrMethod.ABSOLUTE, p.id_));
       emit(new Load(AddrMethod.ABSOLUTE, p.id_));
+    } else if(x.reg != null) {
+      emit(new Lea(x.reg, -1));
+      emit(new Push(x.reg));
+      emit(new Pull("A"));
     } else {
-      emit(new Dec(AddrMethod.NS, x.addr));
-      emit(new Load(AddrMethod.NS, x.addr));
+      emit(new Dec(AddrMethod.NS, addr(x)));
+      emit(new Load(AddrMethod.NS, addr(x)));
     }
-	  return null;
+    return null;
   }
   public Void visit(EIncr p, Exp arg) {
-  	CtxEntry x = lookupVar(p.id_);
+    CtxEntry x = lookupVar(p.id_);
     if(x.global) {
       emit(new Inc(AddrMethod.ABSOLUTE, p.id_));
       emit(new Load(AddrMethod.ABSOLUTE, p.id_));
+    } else if(x.reg != null) {
+      emit(new Lea(x.reg, 1));
+      emit(new Push(x.reg));
+      emit(new Pull("A"));
     } else {
-      emit(new Inc(AddrMethod.NS, x.addr));
-      emit(new Load(AddrMethod.NS, x.addr));
+      emit(new Inc(AddrMethod.NS, addr(x)));
+      emit(new Load(AddrMethod.NS, addr(x)));
     }
-	  return null;
+    return null;
   }
   public Void visit(EPDecr p, Exp arg) {
-		CtxEntry x = lookupVar(p.id_);
+    CtxEntry x = lookupVar(p.id_);
     if(x.global) {
       emit(new Load(AddrMethod.ABSOLUTE, p.id_));
       emit(new Dec(AddrMethod.ABSOLUTE, p.id_));
+    } else if(x.reg != null) {
+      emit(new Push(x.reg));
+      emit(new Pull("A"));
+      emit(new Lea(x.reg, -1));
     } else {
-      emit(new Load(AddrMethod.NS, x.addr));
-      emit(new Dec(AddrMethod.NS, x.addr));
+      emit(new Load(AddrMethod.NS, addr(x)));
+      emit(new Dec(AddrMethod.NS, addr(x)));
     }
-	  return null;
+    return null;
   }
   public Void visit(EPIncr p, Exp arg) {
-		CtxEntry x = lookupVar(p.id_);
+    CtxEntry x = lookupVar(p.id_);
     if(x.global) {
       emit(new Load(AddrMethod.ABSOLUTE, p.id_));
       emit(new Inc(AddrMethod.ABSOLUTE, p.id_));
+    } else if(x.reg != null) {
+      emit(new Push(x.reg));
+      emit(new Pull("A"));
+      emit(new Lea(x.reg, 1));
     } else {
-      emit(new Load(AddrMethod.NS, x.addr));
-      emit(new Inc(AddrMethod.NS, x.addr));
+      emit(new Load(AddrMethod.NS, addr(x)));
+      emit(new Inc(AddrMethod.NS, addr(x)));
     }
-	  return null;
+    return null;
   }
 
+  /* The first two arguments are passed in X and Y, the rest pushed
+   * in order and dropped by the caller after the call. X and Y are
+   * not kept by the callee, so the ones in use are saved around it.
+   * */
   public Void visit(ECall p, Exp arg) {
     Label f = new IdLabel(p.id_);
-    for(Exp e : p.listexp_) {
-      compile(e, e);
-      // Optimization: Could use registers when few arguments are used
-      emit(new Push("A"));
-    }
+    String[] regs = RegisterAllocator.REGISTERS;
+    List<String> saved = liveRegisters();
+    for(String r : saved)
+      emit(new Push(r));
+
+    passArguments(p);
     emit(new Jsr(f));
+    if(p.listexp_.size() > regs.length)
+      pop(p.listexp_.size() - regs.length);
+    for(int i = saved.size() - 1; i >= 0; i--)
+      emit(new Pull(saved.get(i)));
     return null;
   }
 
+  /* Arguments in X, Y and pushed, ready for the call */
+  public void passArguments(ECall p) {
+    String[] regs = RegisterAllocator.REGISTERS;
+    for(int j = regs.length; j < p.listexp_.size(); j++) {
+      compile(p.listexp_.get(j), p.listexp_.get(j));
+      emit(new Push("A"));
+    }
+
+    // Computed arguments wait on the stack until all are done
+    LinkedList<String> computed = new LinkedList<>();
+    for(int j = 0; j < regs.length && j < p.listexp_.size(); j++) {
+      Exp e = p.listexp_.get(j);
+      if(loadInto(regs[j], e) == null) {
+        compile(e, e);
+        emit(new Push("A"));
+        computed.addFirst(regs[j]);
+      }
+    }
+    for(String r : computed)
+      emit(new Pull(r));
+    for(int j = 0; j < regs.length && j < p.listexp_.size(); j++) {
+      if(!computed.contains(regs[j]))
+        emit(loadInto(regs[j], p.listexp_.get(j)));
+    }
+  }
+
   /* Assign */
   public Void visit(EAss p, Exp arg) {
-    CtxEntry entry = lookupVar(p.id_);
     compile(p.exp_, arg);
-    if(entry.global)
-      emit(new Store(AddrMethod.ABSOLUTE, p.id_));
-    else
-      emit(new Store(AddrMethod.NS, entry.addr));
+    store(p.id_);
     return null;
   }
 
@@ -642,18 +1091,23 @@ public class Compiler implements
 
   // Todo: Clean up this mess
   class EIdVisitor implements Exp.Visitor<Code, EId> {
+    /* Variables in registers have been pushed */
+    public int at(CtxEntry entry) {
+      return entry.reg != null ? 0 : addr(entry);
+    }
+
     public Code load(Exp p, EId arg) {
       CtxEntry entry = lookupVar(arg.id_);
       if(entry.global)
         return new Load(AddrMethod.ABSOLUTE, arg.id_);
-      return new Load(AddrMethod.NS, entry.addr);
+      return new Load(AddrMethod.NS, at(entry));
     }
 
     public Code cmp(Exp p, EId arg) {
       CtxEntry entry = lookupVar(arg.id_);
       if(entry.global)
         return new Cmp(AddrMethod.ABSOLUTE, arg.id_);
-      return new Cmp(AddrMethod.NS, entry.addr);
+      return new Cmp(AddrMethod.NS, at(entry));
     }
 
     /* Atoms cannot be in other atom. */
@@ -673,13 +1127,13 @@ public class Compiler implements
       CtxEntry entry = lookupVar(arg.id_);
       if(entry.global)
         return new Add(AddrMethod.ABSOLUTE, arg.id_);
-      return new Add(AddrMethod.NS, entry.addr);
+      return new Add(AddrMethod.NS, at(entry));
     }
     public Code visit(ESub p, EId arg) {
       CtxEntry entry = lookupVar(arg.id_);
         if(entry.global)
           return new Sub(AddrMethod.ABSOLUTE, arg.id_);
-        return new Sub(AddrMethod.NS, entry.addr);
+        return new Sub(AddrMethod.NS, at(entry));
     }
     public Code visit(ELt p, EId arg)   { return cmp(p, arg); }
     public Code visit(EGt p, EId arg)   { return cmp(p, arg); }
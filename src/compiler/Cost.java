@@ -0,0 +1,166 @@
+package compiler;
+
+/* Size and execution time of FLISP instructions.
+ *
+ * Every opcode is one byte, an operand (data, address, stack
+ * offset or branch target) is one more. Cycles are kept per opcode,
+ * with a second count for a conditional branch that falls through,
+ * and test/golden/cycles.txt pins the table.
+ *
+ * The counts have not been checked against the FLISP instruction
+ * list. They are estimates: a memory operand costs one read more
+ * than an immediate one, n,SP one address calculation more than Adr,
+ * and a branch costs the same whether it is taken or not. So are the
+ * cycles the simulator counts and the cycles peephole rules and load
+ * tracking report as saved, which count branches as taken. Labels,
+ * comments and directives take no space or time.
+ * */
+public class Cost {
+  // Cycles by opcode, 0 for opcodes the compiler does not emit, and
+  // of the conditional branches when they fall through
+  static final int[] CYCLES    = new int[256];
+  static final int[] NOT_TAKEN = new int[256];
+  static {
+    // Modes: inherent, #Data, Adr, n,SP, as in Assembler.OPCODES
+    cycles("NOP",    3, -1, -1, -1);
+    cycles("NEGA",   3, -1, -1, -1);
+    cycles("INCA",   3, -1, -1, -1);
+    cycles("DECA",   3, -1, -1, -1);
+    cycles("TSTA",   3, -1, -1, -1);
+    cycles("LSLA",   3, -1, -1, -1);
+    cycles("LSRA",   3, -1, -1, -1);
+    cycles("ROLA",   3, -1, -1, -1);
+    cycles("ASRA",   3, -1, -1, -1);
+    cycles("PSHA",   4, -1, -1, -1);
+    cycles("PSHX",   4, -1, -1, -1);
+    cycles("PSHY",   4, -1, -1, -1);
+    cycles("PULA",   5, -1, -1, -1);
+    cycles("PULX",   5, -1, -1, -1);
+    cycles("PULY",   5, -1, -1, -1);
+    cycles("RTS",    6, -1, -1, -1);
+    cycles("JMP",   -1, -1,  4, -1);
+    cycles("JSR",   -1, -1,  9, -1);
+    cycles("NEG",   -1, -1,  7,  8);
+    cycles("INC",   -1, -1,  7,  8);
+    cycles("DEC",   -1, -1,  7,  8);
+    cycles("LSL",   -1, -1,  7,  8);
+    cycles("LSR",   -1, -1,  7,  8);
+    cycles("ROL",   -1, -1,  7,  8);
+    cycles("ASR",   -1, -1,  7,  8);
+    cycles("STX",   -1, -1,  5,  6);
+    cycles("STY",   -1, -1,  5,  6);
+    cycles("STA",   -1, -1,  5,  6);
+    cycles("LDX",   -1,  4,  5,  6);
+    cycles("LDY",   -1,  4,  5,  6);
+    cycles("LDA",   -1,  4,  5,  6);
+    cycles("SUBA",  -1,  4,  5,  6);
+    cycles("ADDA",  -1,  4,  5,  6);
+    cycles("CMPA",  -1,  4,  5,  6);
+    cycles("CMPX",  -1,  4,  5,  6);
+    cycles("CMPY",  -1,  4,  5,  6);
+    cycles("LEASP", -1, -1, -1,  5);
+    cycles("LEAX",  -1, -1, -1,  4);
+    cycles("LEAY",  -1, -1, -1,  4);
+    // Taken, not taken
+    branch("BRA",    5,  5);
+    branch("BEQ",    5,  5);
+    branch("BNE",    5,  5);
+    branch("BCS",    5,  5);
+    branch("BCC",    5,  5);
+    branch("BGT",    5,  5);
+    branch("BGE",    5,  5);
+    branch("BLE",    5,  5);
+    branch("BLT",    5,  5);
+  }
+
+  static void cycles(String mnemonic, int... modes) {
+    for(int mode = 0; mode < modes.length; mode++)
+      if(modes[mode] >= 0) {
+        int op = Assembler.opcode(mnemonic, mode);
+        CYCLES[op] = NOT_TAKEN[op] = modes[mode];
+      }
+  }
+
+  static void branch(String mnemonic, int taken, int notTaken) {
+    int op = Assembler.opcode(mnemonic, Assembler.REL);
+    CYCLES[op] = taken;
+    NOT_TAKEN[op] = notTaken;
+  }
+
+  /* Cycles of opcode, of a conditional branch when taken, 0 if the
+   * compiler does not emit it */
+  public static int cycles(int opcode) {
+    return CYCLES[opcode];
+  }
+
+  /* Cycles of opcode when a conditional branch falls through */
+  public static int notTaken(int opcode) {
+    return NOT_TAKEN[opcode];
+  }
+
+  static int bytes(Code c) {
+    return c.accept(BYTES);
+  }
+
+  /* Cycles of c, a branch counted as taken */
+  static int cycles(Code c) {
+    return cycles(c, CYCLES);
+  }
+
+  static int notTaken(Code c) {
+    return cycles(c, NOT_TAKEN);
+  }
+
+  static int cycles(Code c, int[] table) {
+    int op = Assembler.opcode(c);
+    if(op < 0)
+      return 0;
+    if(table[op] == 0)
+      throw new RuntimeException(String.format("No cycle count for opcode %02X", op));
+    return table[op];
+  }
+
+  static final CodeVisitor<Integer> BYTES = new Size();
+
+  static int operand(Addressable c) {
+    return c.m == AddrMethod.INHERENT ? 1 : 2;
+  }
+
+  static class Size implements CodeVisitor<Integer> {
+    public Integer visit(Comment c)   { return 0; }
+    public Integer visit(Pull c)      { return 1; }
+    public Integer visit(Push c)      { return 1; }
+    public Integer visit(Add c)       { return operand(c); }
+    public Integer visit(Sub c)       { return operand(c); }
+    public Integer visit(Target c)    { return 0; }
+    public Integer visit(VarTarget c) { return c.code.accept(this); }
+    public Integer visit(Return c)    { return 1; }
+    public Integer visit(Load c)      { return operand(c); }
+    public Integer visit(Store c)     { return operand(c); }
+    public Integer visit(Org c)       { return 0; }
+    public Integer visit(Leasp c)     { return 2; }
+    public Integer visit(Lea c)       { return 2; }
+    public Integer visit(Rmb c)       { return 0; }
+    public Integer visit(Test c)      { return 1; }
+    public Integer visit(Nop c)       { return 1; }
+    public Integer visit(Cmp c)       { return operand(c); }
+    public Integer visit(Inc c)       { return operand(c); }
+    public Integer visit(Dec c)       { return operand(c); }
+    public Integer visit(Beq c)       { return 2; }
+    public Integer visit(Bge c)       { return 2; }
+    public Integer visit(Bgt c)       { return 2; }
+    public Integer visit(Ble c)       { return 2; }
+    public Integer visit(Blt c)       { return 2; }
+    public Integer visit(Bne c)       { return 2; }
+    public Integer visit(Bcc c)       { return 2; }
+    public Integer visit(Bcs c)       { return 2; }
+    public Integer visit(Lsl c)       { return operand(c); }
+    public Integer visit(Lsr c)       { return operand(c); }
+    public Integer visit(Asr c)       { return operand(c); }
+    public Integer visit(Rol c)       { return operand(c); }
+    public Integer visit(Neg c)       { return operand(c); }
+    public Integer visit(Bra c)       { return 2; }
+    public Integer visit(Jsr c)       { return 2; }
+    public Integer visit(Jmp c)       { return 2; }
+  }
+}
@@ -0,0 +1,63 @@
+package compiler;
+
+import java.io.*;
+
+/* Streaming sink for the assembly text.
+ *
+ * Instructions are rendered into one reusable builder, which is
+ * copied to a reusable char array and written to the underlying
+ * writer whenever it has grown past a few kilobytes. The whole
+ * program text never exists at once and no String is made of it.
+ * The instructions themselves are all kept until then, in the
+ * Assembly, since the passes after the Compiler need all of them.
+ * */
+class Emitter {
+  static final int FLUSH_SIZE = 8192;
+
+  private final Writer out;
+  private final StringBuilder sb = new StringBuilder(FLUSH_SIZE + 256);
+  private char[] chars = new char[FLUSH_SIZE + 256];
+
+  public Emitter(Writer out) {
+    this.out = out;
+  }
+
+  public void append(CharSequence s) {
+    sb.append(s);
+  }
+
+  /* Builder at the end of the output, for appending in place. */
+  public StringBuilder buffer() {
+    return sb;
+  }
+
+  /* Writes the buffered text if enough has been collected. */
+  public void flush() {
+    if(sb.length() >= FLUSH_SIZE)
+      write();
+  }
+
+  /* Writes the rest of the output. */
+  public void finish() {
+    write();
+    try {
+      out.flush();
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Writer.append(sb) would make a String of the text first
+  private void write() {
+    int n = sb.length();
+    if(n > chars.length)
+      chars = new char[n];
+    sb.getChars(0, n, chars, 0);
+    try {
+      out.write(chars, 0, n);
+      sb.setLength(0);
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
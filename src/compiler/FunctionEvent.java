@@ -0,0 +1,36 @@
+package compiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/* JFR event for every function the Compiler compiles, to find the
+ * functions that take long among the rest of the recording. */
+@Name("flispcc.Function")
+@Label("Function Compiled")
+@Category("flispcc")
+@Description("Code generation of one function, before load tracking and peephole rules")
+@StackTrace(false)
+public class FunctionEvent extends Event {
+  @Label("Program")
+  public String program;
+
+  @Label("Function")
+  public String function;
+
+  @Label("Instructions")
+  public int instructions;
+
+  @Label("Locals")
+  public int locals;
+
+  @Label("Stack Limit")
+  public int stack;
+
+  @Label("Reused")
+  @Description("Code kept by --incremental, not compiled again")
+  public boolean reused;
+}
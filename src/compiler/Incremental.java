@@ -0,0 +1,150 @@
+package compiler;
+
+import java.util.*;
+import C.Absyn.*;
+import typechecker.TypeChecker;
+import optimizer.ConstantFolder;
+import optimizer.DeadCodeEliminator;
+
+/* What was made for every function of one file, kept between
+ * compilations of that file.
+ *
+ * A function depends on its own body, the signatures of the functions
+ * it calls (Calls) and the globals, which any name may refer to. If
+ * none of them changed since the last compilation, the function is not
+ * type checked, folded or compiled again: its optimized tree and its
+ * instructions from last time are used. Instructions are kept as the
+ * Compiler made them, load tracking and the peephole pass run on the
+ * whole program every time.
+ *
+ * Used in place of TypeChecker, ConstantFolder and DeadCodeEliminator,
+ * then by the Compiler through incremental(). frontEnd() is one at a
+ * time, but the Compiler looks up and keeps code from the threads of
+ * the common pool while the caller waits for them, so those take no
+ * lock: frontEnd() publishes a new map of units instead of changing
+ * the one in use, and a unit only gets code for the tree it holds.
+ * A compile of the same file running meanwhile at worst compiles a
+ * function again.
+ * */
+public class Incremental {
+
+  /* One function */
+  static class Unit {
+    DFunc source;          // as parsed
+    String deps;           // signatures it calls and globals
+    DFunc optimized;       // type checked, folded and without dead code
+    volatile Set<String> runtime;   // helpers the code calls
+    volatile FuncCode code;         // from the Compiler, null until compiled
+  }
+
+  // Never changed once published, frontEnd() replaces it
+  volatile Map<String, Unit> units = new HashMap<>();
+  volatile int changed;
+  volatile int reused;
+
+  /* Front end for p, only functions that changed are checked and optimized */
+  public synchronized Program frontEnd(Program p) {
+    Prg prg = (Prg)p;
+    Map<String, String> signatures = new HashMap<>();
+    StringBuilder globals = new StringBuilder();
+    for(Def d : prg.listdef_) {
+      if(d instanceof DFunc)
+        signatures.put(((DFunc)d).id_, signature((DFunc)d));
+      else
+        globals.append(global((DGlob)d)).append(';');
+    }
+
+    Map<String, Unit> next = new HashMap<>();
+    Set<String> check = new HashSet<>();
+    for(Def d : prg.listdef_) {
+      if(!(d instanceof DFunc))
+        continue;
+      DFunc f = (DFunc)d;
+      StringBuilder deps = new StringBuilder(globals);
+      for(String id : new optimizer.Calls().in(f))
+        deps.append(id).append('=').append(signatures.get(id)).append(';');
+      Unit u = units.get(f.id_);
+      if(u == null || !u.deps.equals(deps.toString()) || !u.source.equals(f)) {
+        u = new Unit();
+        u.source = f;
+        u.deps = deps.toString();
+        check.add(f.id_);
+      }
+      next.put(f.id_, u);
+    }
+
+    new TypeChecker().typecheck(p, check);
+
+    ConstantFolder folder = new ConstantFolder();
+    DeadCodeEliminator eliminator = new DeadCodeEliminator();
+    ListDef defs = new ListDef();
+    for(Def d : prg.listdef_) {
+      if(d instanceof DFunc) {
+        Unit u = next.get(((DFunc)d).id_);
+        if(u.optimized == null)
+          u.optimized = (DFunc)d.accept(folder, null).accept(eliminator, null);
+        defs.add(u.optimized);
+      } else {
+        defs.add(d.accept(folder, null));
+      }
+    }
+
+    units = next;
+    changed = check.size();
+    reused = next.size() - changed;
+    return eliminator.unused(new Prg(defs));
+  }
+
+  /* Instructions of p from last time, null if it has to be compiled.
+   * The helpers they call are added to runtime. */
+  FuncCode code(DFunc p, Set<String> runtime) {
+    Unit u = units.get(p.id_);
+    FuncCode c = u == null || u.optimized != p ? null : u.code;
+    if(c == null)
+      return null;
+    runtime.addAll(u.runtime);
+    return copy(c);
+  }
+
+  /* Keeps the instructions made for p, before they are optimized.
+   * The runtime is set first, code() finds both once code is set. */
+  void compiled(DFunc p, FuncCode code, Set<String> runtime) {
+    Unit u = units.get(p.id_);
+    if(u != null && u.optimized == p) {
+      u.runtime = runtime;
+      u.code = copy(code);
+    }
+  }
+
+  /* The passes after the Compiler rewrite the list in place */
+  static FuncCode copy(FuncCode f) {
+    FuncCode c = new FuncCode(f.id, new ArrayList<>(f.code));
+    c.stack  = f.stack;
+    c.locals = f.locals;
+    return c;
+  }
+
+  /* Functions checked and compiled again, and reused, last time */
+  public String report() {
+    return String.format(";; incremental: %d functions compiled, %d reused\n", changed, reused);
+  }
+
+  static String signature(DFunc f) {
+    StringBuilder sb = new StringBuilder(f.type_.getClass().getSimpleName()).append('(');
+    for(Arg a : f.listarg_)
+      sb.append(((ADecl)a).type_.getClass().getSimpleName()).append(',');
+    return sb.append(')').toString();
+  }
+
+  static String global(DGlob g) {
+    if(g.stm_ instanceof SDecls) {
+      SDecls s = (SDecls)g.stm_;
+      return s.type_.getClass().getSimpleName() + " " + String.join(",", s.listid_);
+    }
+    if(g.stm_ instanceof SInit) {
+      SInit s = (SInit)g.stm_;
+      return s.type_.getClass().getSimpleName() + " " + s.id_ + "=" + s.exp_.hashCode();
+    }
+    return g.stm_.getClass().getSimpleName();
+  }
+}
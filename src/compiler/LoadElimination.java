@@ -0,0 +1,241 @@
+package compiler;
+
+import java.util.*;
+
+/* Removes loads and tests that can not change anything.
+ *
+ * A forward pass over the instructions of a function keeps track of
+ * what the registers and flags hold: a known constant, memory
+ * locations (stack slots n,SP and globals) holding the same value,
+ * and whether N/Z currently describe A. A load of a value A already
+ * holds and a TSTA of flags that already describe A are removed,
+ * as are loads of X and Y that would not change them.
+ *
+ * Nothing is known at a label, since it can be reached from a branch,
+ * and memory knowledge is dropped whenever SP moves or a subroutine
+ * is called.
+ * */
+public class LoadElimination {
+
+  /* What the flags describe */
+  enum Flags {
+    UNKNOWN,
+    LOAD,   // N and Z from A, V cleared (LDA, TSTA)
+    ARITH   // N and Z from A, V and C from an operation
+  }
+
+  /* What a register holds */
+  static class Reg {
+    Integer value;                        // constant, null if unknown
+    Set<String> same = new HashSet<>();   // memory holding the same value
+
+    void clear() {
+      value = null;
+      same.clear();
+    }
+  }
+
+  final Reg a = new Reg();
+  final Reg x = new Reg();
+  final Reg y = new Reg();
+  Flags flags = Flags.UNKNOWN;
+
+  // Memory locations with a known constant
+  final Map<String, Integer> memory = new HashMap<>();
+
+  int removed;
+  int bytes;
+  int cycles;
+
+  /* Optimizes code in place. */
+  public void optimize(ArrayList<Code> code) {
+    reset();
+    for(int i = 0; i < code.size(); i++) {
+      Code c = code.get(i);
+      if(c == null)
+        continue;
+      if(redundant(code, i)) {
+        removed++;
+        bytes  += Cost.bytes(c);
+        cycles += Cost.cycles(c);
+        code.set(i, null);
+        continue;
+      }
+      step(c);
+    }
+    code.removeIf(Objects::isNull);
+  }
+
+  /* One comment line if anything was removed. */
+  public String report() {
+    if(removed == 0)
+      return "";
+    return String.format(";; tracking %-14s x%d: -%d bytes, -%d cycles\n",
+        "loads", removed, bytes, cycles);
+  }
+
+  public int bytesSaved()  { return bytes; }
+  public int cyclesSaved() { return cycles; }
+
+  /*================ Helpers ================*/
+
+  /* Name of a memory operand, null if not memory. */
+  static String location(Addressable c) {
+    switch(c.m) {
+      case ABSOLUTE:
+        return c.label != null && !c.label.isEmpty() ? c.label : "$" + c.address;
+      case NS:
+        return c.index + ",SP";
+    }
+    return null;
+  }
+
+  /* Value the operand of c has, null if unknown */
+  Integer operand(Addressable c) {
+    if(c.m == AddrMethod.IMMEDIATE)
+      return c.data & 0xFF;
+    String l = location(c);
+    return l == null ? null : memory.get(l);
+  }
+
+  boolean redundant(ArrayList<Code> code, int i) {
+    Code c = code.get(i);
+    if(c instanceof Load) {
+      Load l = (Load)c;
+      Reg r = reg(l.reg);
+      String loc = location(l);
+      Integer v = operand(l);
+      boolean same = (loc != null && r.same.contains(loc))
+        || (v != null && v.equals(r.value));
+      if(same && r != a)
+        return !Peephole.flagsRead(code, Peephole.next(code, i));
+      if(!same)
+        return false;
+      // LDA would set the flags from A, fine if they already are
+      return flags == Flags.LOAD || !Peephole.flagsRead(code, Peephole.next(code, i));
+    }
+    if(c instanceof Test) {
+      if(flags == Flags.LOAD)
+        return true;
+      if(flags == Flags.ARITH) {
+        // Only Z is known to be the same
+        int j = Peephole.next(code, i);
+        return j < code.size() && (code.get(j) instanceof Beq || code.get(j) instanceof Bne);
+      }
+    }
+    return false;
+  }
+
+  void reset() {
+    a.clear();
+    x.clear();
+    y.clear();
+    flags = Flags.UNKNOWN;
+    memory.clear();
+  }
+
+  /* Stack offsets change meaning, forget all n,SP */
+  void forgetStack() {
+    memory.keySet().removeIf(k -> k.endsWith(",SP"));
+    a.same.removeIf(k -> k.endsWith(",SP"));
+    x.same.removeIf(k -> k.endsWith(",SP"));
+    y.same.removeIf(k -> k.endsWith(",SP"));
+  }
+
+  /* Memory at loc was written with an unknown value */
+  void forget(String loc) {
+    memory.remove(loc);
+    a.same.remove(loc);
+    x.same.remove(loc);
+    y.same.remove(loc);
+  }
+
+  Reg reg(String name) {
+    switch(name) {
+      case "A": return a;
+      case "X": return x;
+      case "Y": return y;
+    }
+    return null;
+  }
+
+  /* Updates what is known after c has run */
+  void step(Code c) {
+    if(c instanceof Comment || c instanceof Nop || c instanceof Branch)
+      return;
+
+    if(c instanceof Load) {
+      Load l = (Load)c;
+      Reg r = reg(l.reg);
+      Integer v = operand(l);
+      String loc = location(l);
+      r.clear();
+      r.value = v;
+      if(loc != null)
+        r.same.add(loc);
+      flags = r == a ? Flags.LOAD : Flags.UNKNOWN;
+    } else if(c instanceof Store) {
+      Reg r = reg(((Store)c).reg);
+      String loc = location((Store)c);
+      forget(loc);
+      r.same.add(loc);
+      if(r.value != null)
+        memory.put(loc, r.value);
+    } else if(c instanceof Add || c instanceof Sub) {
+      Integer v = operand((Addressable)c);
+      Integer r = null;
+      if(v != null && a.value != null)
+        r = (c instanceof Add ? a.value + v : a.value - v) & 0xFF;
+      a.clear();
+      a.value = r;
+      flags = Flags.ARITH;
+    } else if(c instanceof Inc || c instanceof Dec) {
+      Addressable m = (Addressable)c;
+      int d = c instanceof Inc ? 1 : -1;
+      if(m.m == AddrMethod.INHERENT) {
+        Integer r = a.value == null ? null : (a.value + d) & 0xFF;
+        a.clear();
+        a.value = r;
+        flags = Flags.ARITH;
+      } else {
+        String loc = location(m);
+        Integer v = memory.get(loc);
+        forget(loc);
+        if(v != null)
+          memory.put(loc, (v + d) & 0xFF);
+        flags = Flags.UNKNOWN;
+      }
+    } else if(c instanceof Lsl || c instanceof Lsr || c instanceof Asr
+        || c instanceof Rol || c instanceof Neg) {
+      Addressable m = (Addressable)c;
+      if(m.m == AddrMethod.INHERENT)
+        a.clear();
+      else
+        forget(location(m));
+      flags = Flags.UNKNOWN;
+    } else if(c instanceof Cmp) {
+      flags = Flags.UNKNOWN;
+    } else if(c instanceof Test) {
+      flags = Flags.LOAD;
+    } else if(c instanceof Push) {
+      forgetStack();
+    } else if(c instanceof Pull) {
+      forgetStack();
+      Reg r = reg(((Pull)c).reg);
+      if(r != null)
+        r.clear();
+      flags = Flags.UNKNOWN;
+    } else if(c instanceof Leasp) {
+      forgetStack();
+    } else if(c instanceof Lea) {
+      Lea l = (Lea)c;
+      Reg r = reg(l.reg);
+      Integer v = r.value == null ? null : (r.value + l.index) & 0xFF;
+      r.clear();
+      r.value = v;
+    } else {
+      // Labels, calls, returns and directives
+      reset();
+    }
+  }
+}
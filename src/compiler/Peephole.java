@@ -0,0 +1,266 @@
+package compiler;
+
+import java.util.*;
+
+/* Peephole optimizer.
+ *
+ * Runs over the instructions of one function after code generation
+ * and before rendering. Each entry in RULES looks at the code around
+ * one position and removes instructions that can not change the
+ * result. Rules are applied until none of them fires. Removed
+ * instructions are booked on the rule that removed them, so the
+ * saved bytes and cycles can be reported per rule.
+ * */
+public class Peephole {
+
+  /* What one rule has removed so far. */
+  static class Saving {
+    int fired;
+    int bytes;
+    int cycles;
+  }
+
+  abstract static class Rule {
+    final String name;
+    Rule(String name) {
+      this.name = name;
+    }
+
+    /* Rewrites code at i if the rule matches there.
+     * Returns true if anything was removed. */
+    abstract boolean apply(Peephole p, ArrayList<Code> code, int i);
+  }
+
+  /* The rule table, tried in order at every position. */
+  static final Rule[] RULES = {
+
+    // STA x ; LDA x  ->  STA x
+    new Rule("store-load") {
+      boolean apply(Peephole p, ArrayList<Code> code, int i) {
+        if(!(code.get(i) instanceof Store))
+          return false;
+        int j = next(code, i);
+        if(j == code.size() || !(code.get(j) instanceof Load))
+          return false;
+        Load l = (Load)code.get(j);
+        Store st = (Store)code.get(i);
+        if(!l.reg.equals(st.reg) || !l.sameOperand(st))
+          return false;
+        if(flagsRead(code, next(code, j)))
+          return false;
+        p.remove(this, code, j);
+        return true;
+      }
+    },
+
+    // LDA x ; LDA y  ->  LDA y
+    new Rule("dead-load") {
+      boolean apply(Peephole p, ArrayList<Code> code, int i) {
+        if(!(code.get(i) instanceof Load))
+          return false;
+        int j = next(code, i);
+        if(j == code.size() || !(code.get(j) instanceof Load))
+          return false;
+        if(!((Load)code.get(i)).reg.equals(((Load)code.get(j)).reg))
+          return false;
+        p.remove(this, code, i);
+        return true;
+      }
+    },
+
+    // LDA x ; TSTA  ->  LDA x
+    // ADDA x ; TSTA ; BEQ/BNE  ->  ADDA x ; BEQ/BNE
+    new Rule("redundant-test") {
+      boolean apply(Peephole p, ArrayList<Code> code, int i) {
+        if(!(code.get(i) instanceof Test))
+          return false;
+        int j = prev(code, i);
+        if(j < 0)
+          return false;
+        Code c = code.get(j);
+        boolean load = c instanceof Load && ((Load)c).reg.equals("A");
+        if(!(load || setsZero(c)))
+          return false;
+        // Only Z is known to be the same after arithmetic
+        if(!load) {
+          int k = next(code, i);
+          if(k == code.size())
+            return false;
+          Code b = code.get(k);
+          if(!(b instanceof Beq || b instanceof Bne))
+            return false;
+        }
+        p.remove(this, code, i);
+        return true;
+      }
+    },
+
+    // BRA L ; L:  ->  L:
+    new Rule("branch-to-next") {
+      boolean apply(Peephole p, ArrayList<Code> code, int i) {
+        if(!(code.get(i) instanceof Branch))
+          return false;
+        Label l = ((Branch)code.get(i)).label;
+        for(int j = next(code, i); j < code.size(); j = next(code, j)) {
+          Code c = code.get(j);
+          if(!(c instanceof Target))
+            return false;
+          if(((Target)c).label.equals(l)) {
+            p.remove(this, code, i);
+            return true;
+          }
+        }
+        return false;
+      }
+    },
+
+    // NOP  ->
+    new Rule("nop") {
+      boolean apply(Peephole p, ArrayList<Code> code, int i) {
+        if(!(code.get(i) instanceof Nop))
+          return false;
+        p.remove(this, code, i);
+        return true;
+      }
+    },
+
+    // BRA L ; x  ->  BRA L   (until the next label)
+    new Rule("unreachable") {
+      boolean apply(Peephole p, ArrayList<Code> code, int i) {
+        Code c = code.get(i);
+        if(!(c instanceof Bra || c instanceof Jmp || c instanceof Return))
+          return false;
+        int j = next(code, i);
+        if(j == code.size())
+          return false;
+        Code d = code.get(j);
+        if(d instanceof Target || d instanceof VarTarget || d instanceof Org)
+          return false;
+        p.remove(this, code, j);
+        return true;
+      }
+    },
+  };
+
+  final Set<String> disabled;
+  final Map<String, Saving> savings = new LinkedHashMap<>();
+
+  public Peephole() {
+    this(Collections.emptySet());
+  }
+
+  /* Rules named in disabled are not applied. */
+  public Peephole(Set<String> disabled) {
+    for(String name : disabled)
+      if(!ruleNames().contains(name))
+        throw new IllegalArgumentException("Unknown peephole rule: " + name);
+    this.disabled = disabled;
+    for(Rule r : RULES)
+      savings.put(r.name, new Saving());
+  }
+
+  public static List<String> ruleNames() {
+    List<String> names = new ArrayList<>();
+    for(Rule r : RULES)
+      names.add(r.name);
+    return names;
+  }
+
+  /* Optimizes code in place. */
+  public void optimize(ArrayList<Code> code) {
+    boolean changed = true;
+    while(changed) {
+      changed = false;
+      for(int i = 0; i < code.size(); i++) {
+        for(Rule r : RULES) {
+          if(code.get(i) == null)
+            break;
+          if(!disabled.contains(r.name) && r.apply(this, code, i))
+            changed = true;
+        }
+      }
+      // Removed instructions are left as null during a pass
+      code.removeIf(Objects::isNull);
+    }
+  }
+
+  void remove(Rule r, ArrayList<Code> code, int i) {
+    Saving s = savings.get(r.name);
+    s.fired++;
+    s.bytes  += Cost.bytes(code.get(i));
+    s.cycles += Cost.cycles(code.get(i));
+    code.set(i, null);
+  }
+
+  public int bytesSaved() {
+    int n = 0;
+    for(Saving s : savings.values())
+      n += s.bytes;
+    return n;
+  }
+
+  public int cyclesSaved() {
+    int n = 0;
+    for(Saving s : savings.values())
+      n += s.cycles;
+    return n;
+  }
+
+  /* One comment line per rule that fired, and the rules not applied. */
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    if(!disabled.isEmpty())
+      sb.append(";; peephole off: ").append(String.join(", ", disabled)).append("\n");
+    for(Map.Entry<String, Saving> e : savings.entrySet()) {
+      Saving s = e.getValue();
+      if(s.fired > 0)
+        sb.append(String.format(";; peephole %-14s x%d: -%d bytes, -%d cycles\n",
+              e.getKey(), s.fired, s.bytes, s.cycles));
+    }
+    return sb.toString();
+  }
+
+  /*================ Helpers ================*/
+
+  /* Index of the next instruction after i, skipping
+   * comments and removed code. */
+  static int next(ArrayList<Code> code, int i) {
+    int j = i + 1;
+    while(j < code.size() && (code.get(j) == null || code.get(j) instanceof Comment))
+      j++;
+    return j;
+  }
+
+  /* Index of the previous instruction before i, -1 if none. */
+  static int prev(ArrayList<Code> code, int i) {
+    int j = i - 1;
+    while(j >= 0 && (code.get(j) == null || code.get(j) instanceof Comment))
+      j--;
+    return j;
+  }
+
+  /* Instructions that set Z from the new value of A. */
+  static boolean setsZero(Code c) {
+    if(c instanceof Add || c instanceof Sub)
+      return true;
+    if(c instanceof Inc || c instanceof Dec)
+      return ((Addressable)c).m == AddrMethod.INHERENT;
+    return false;
+  }
+
+  /* False only if the flags are set again before anything
+   * starting at i can look at them. */
+  static boolean flagsRead(ArrayList<Code> code, int i) {
+    for(int j = i; j < code.size(); j = next(code, j)) {
+      Code c = code.get(j);
+      if(c instanceof Load || c instanceof Add || c instanceof Sub
+          || c instanceof Cmp || c instanceof Test
+          || c instanceof Inc || c instanceof Dec)
+        return false;
+      if(!(c instanceof Store || c instanceof Push || c instanceof Leasp
+            || c instanceof Lea))
+        return true;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,25 @@
+package compiler;
+
+// Not jdk.jfr.*, compiler.Label would hide jdk.jfr.Label
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/* JFR event for one phase of compiling one file, from Stats.start to
+ * the next. Recorded with java -XX:StartFlightRecording, when no
+ * recording is on the event is only checked and dropped. */
+@Name("flispcc.Phase")
+@Label("Compiler Phase")
+@Category("flispcc")
+@Description("One phase of compiling a file: lex, parse, typecheck, compile, ...")
+@StackTrace(false)
+public class PhaseEvent extends Event {
+  @Label("File")
+  public String file;
+
+  @Label("Phase")
+  public String phase;
+}
@@ -0,0 +1,158 @@
+package compiler;
+
+import java.util.*;
+
+/* Where the cycles of a simulated run go.
+ *
+ * The Simulator calls step for every instruction it runs with the
+ * cycles it charges, estimates from Cost. Cycles are counted per
+ * instruction and summed afterwards per function, per loop and per
+ * source statement. A statement is the Comment the compiler
+ * wrote before the instruction, so the profile is as fine as those
+ * comments: conditions and bodies of while and if are separate.
+ *
+ * A loop is the code between a label and a branch back to it in the
+ * same function. Its cycles are those of its own instructions, calls
+ * made from it count for the functions called.
+ *
+ * The call stack follows JSR, RTS and JMP to a function (a tail call
+ * replaces the caller). Cycles are also summed per stack, which gives
+ * the collapsed format of flamegraph.pl: "main;f;g 123" per line.
+ * */
+public class Profiler {
+  final Simulator sim;
+  final long[] count;
+  final long[] cycles;
+
+  // Current call stack and the cycles of every stack seen
+  final ArrayList<String> frames = new ArrayList<>();
+  final Map<String, Integer> stackIds = new HashMap<>();
+  final ArrayList<String> stacks = new ArrayList<>();
+  long[] stackCycles = new long[16];
+  int stack;
+
+  Profiler(Simulator sim) {
+    this.sim = sim;
+    count = new long[sim.size];
+    cycles = new long[sim.size];
+    frames.add(sim.function[sim.entry]);
+    stack = stackId();
+  }
+
+  /* Instruction i is about to run and takes c cycles */
+  void step(int i, int c) {
+    count[i]++;
+    cycles[i] += c;
+    stackCycles[stack] += c;
+    switch(sim.op[i]) {
+      case Simulator.JSR:
+        frames.add(sim.function[sim.arg[i]]);
+        stack = stackId();
+        break;
+      case Simulator.JMP:
+        String f = sim.function[sim.arg[i]];
+        if(!f.equals(frames.get(frames.size() - 1))) {
+          frames.set(frames.size() - 1, f);
+          stack = stackId();
+        }
+        break;
+      case Simulator.RTS:
+        if(frames.size() > 1) {
+          frames.remove(frames.size() - 1);
+          stack = stackId();
+        }
+        break;
+    }
+  }
+
+  int stackId() {
+    String s = String.join(";", frames);
+    Integer id = stackIds.get(s);
+    if(id == null) {
+      id = stacks.size();
+      stackIds.put(s, id);
+      stacks.add(s);
+      if(id == stackCycles.length)
+        stackCycles = Arrays.copyOf(stackCycles, 2 * id);
+    }
+    return id;
+  }
+
+  /*=============== Reports ================ */
+
+  public long totalCycles() {
+    long n = 0;
+    for(long c : cycles)
+      n += c;
+    return n;
+  }
+
+  /* Cycles of the instructions of each function */
+  public Map<String, Long> functions() {
+    Map<String, Long> m = new LinkedHashMap<>();
+    for(int i = 0; i < sim.size; i++)
+      m.merge(sim.function[i], cycles[i], Long::sum);
+    return m;
+  }
+
+  /* Cycles of each statement, keyed "function: statement" */
+  public Map<String, Long> statements() {
+    Map<String, Long> m = new LinkedHashMap<>();
+    for(int i = 0; i < sim.size; i++)
+      m.merge(sim.function[i] + ": " + sim.statement[i], cycles[i], Long::sum);
+    return m;
+  }
+
+  /* Cycles of each loop, keyed "function: statement at its label" */
+  public Map<String, Long> loops() {
+    // Innermost label first, one loop per label
+    TreeMap<Integer, Integer> ends = new TreeMap<>();
+    for(int i = 0; i < sim.size; i++) {
+      int o = sim.op[i];
+      if(o >= Simulator.BEQ && o <= Simulator.BRA && sim.arg[i] < i
+          && sim.function[sim.arg[i]].equals(sim.function[i]))
+        ends.merge(sim.arg[i], i, Math::max);
+    }
+    Map<String, Long> m = new LinkedHashMap<>();
+    for(Map.Entry<Integer, Integer> e : ends.entrySet()) {
+      long n = 0;
+      for(int i = e.getKey(); i <= e.getValue(); i++)
+        n += cycles[i];
+      int head = e.getKey();
+      m.merge(sim.function[head] + ": " + sim.statement[head], n, Long::sum);
+    }
+    return m;
+  }
+
+  /* One line per call stack, for flamegraph.pl */
+  public String collapsed() {
+    StringBuilder sb = new StringBuilder();
+    for(int id = 0; id < stacks.size(); id++)
+      if(stackCycles[id] > 0)
+        sb.append(stacks.get(id)).append(' ').append(stackCycles[id]).append('\n');
+    return sb.toString();
+  }
+
+  /* Functions, loops and statements, most cycles first */
+  public String flat() {
+    long total = totalCycles();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Profile: %d cycles, estimated\n", total));
+    table(sb, "function", functions(), total);
+    table(sb, "loop", loops(), total);
+    table(sb, "statement", statements(), total);
+    return sb.toString();
+  }
+
+  static void table(StringBuilder sb, String what, Map<String, Long> m, long total) {
+    ArrayList<Map.Entry<String, Long>> rows = new ArrayList<>(m.entrySet());
+    rows.removeIf(e -> e.getValue() == 0);
+    if(rows.isEmpty())
+      return;
+    rows.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    sb.append(String.format("\n%10s %6s  %s\n", "cycles", "%", what));
+    for(Map.Entry<String, Long> e : rows)
+      sb.append(String.format("%10d %5.1f%%  %s\n", e.getValue(),
+            100.0 * e.getValue() / Math.max(total, 1), e.getKey()));
+  }
+}
@@ -0,0 +1,345 @@
+package compiler;
+
+import java.util.*;
+import C.Absyn.*;
+
+/* Chooses the locals of a function that are kept in X and Y.
+ *
+ * Declarations are numbered in the order the compiler sees them,
+ * arguments first. Every use of a local is weighed by the cycles it
+ * saves (or costs) in a register instead of a stack slot, times 8 for
+ * each loop around it. A local is live from its declaration to the end
+ * of its block, so locals in different branches of the block tree can
+ * share a register. Registers are caller saved, so each call in the
+ * live range costs a push and a pull.
+ *
+ * The locals with the highest gain get X and Y, greedily, and
+ * the rest are spilled to stack slots. The first two arguments arrive
+ * in X and Y and can only keep their own register. If the few locals
+ * left on the stack fit in registers too, the frame is dropped when
+ * that pays, which is the case for most leaf functions.
+ * */
+class RegisterAllocator implements
+  Stm.Visitor<Void, Void>,
+  Exp.Visitor<Void, RegisterAllocator.Use>
+{
+  static final String[] REGISTERS = { "X", "Y" };
+
+  // LEASP -n,SP and LEASP n,SP, saved when nothing needs a slot
+  static final int FRAME_CYCLES = 10;
+
+  /* How an expression uses a variable */
+  enum Use {
+    LOAD(-3),        // into A:             PSHX PULA  vs LDA n,SP
+    OPERAND(-9),     // right of ADDA/CMPA: PSHX op 0,SP PULX
+    COMPARE(6),      // left of a compare:  CMPX  vs LDA n,SP CMPA
+    STEP(10),        // i++; :              LEAX  vs INC n,SP LDA n,SP
+    STEP_VALUE(1),   // value of i++:       LEAX PSHX PULA
+    SET(6),          // i = 1; :            LDX   vs LDA STA
+    SET_VALUE(-3);   // i = e :             PSHA PULX vs STA n,SP
+
+    final int gain;
+    Use(int gain) {
+      this.gain = gain;
+    }
+  }
+
+  /* One declared variable */
+  static class Decl {
+    final int index;
+    final int start;      // position of the declaration
+    int end;              // end of its block
+    int gain;
+    int calls;            // weighted calls while live
+    int callsAtStart;
+    String reg;
+
+    Decl(int index, int start) {
+      this.index = index;
+      this.start = start;
+    }
+
+    boolean interferes(Decl d) {
+      return start < d.end && d.start < end;
+    }
+
+    int weight() {
+      return gain - 9 * calls;
+    }
+  }
+
+  final ArrayList<Decl> decls = new ArrayList<>();
+  // Variables in scope, innermost block first
+  final LinkedList<Map<String, Decl>> scopes = new LinkedList<>();
+  final LinkedList<List<Decl>> blocks = new LinkedList<>();
+
+  int nargs;
+  int position = 0;
+  int calls = 0;
+  int weight = 1;   // 8 to the loop depth
+
+  /* Register of every declaration, null if spilled */
+  public String[] allocate(DFunc p) {
+    nargs = p.listarg_.size();
+    enter();
+    for(Arg a : p.listarg_) {
+      Decl d = declare(((ADecl)a).id_);
+      int j = d.index;
+      if(j < REGISTERS.length)
+        d.gain += 6;      // no STX to its slot in the prologue
+      else
+        d.gain -= 6;      // LDX from the caller's frame
+    }
+    for(Stm s : p.liststm_)
+      s.accept(this, null);
+    leave();
+
+    ArrayList<Decl> order = new ArrayList<>(decls);
+    order.sort((a, b) -> b.weight() - a.weight());
+    for(Decl d : order) {
+      if(d.weight() <= 0)
+        break;
+      assign(d);
+    }
+    withoutFrame(order);
+
+    String[] regs = new String[decls.size()];
+    for(Decl d : decls)
+      regs[d.index] = d.reg;
+    return regs;
+  }
+
+  /* Stack slots needed for a frame with regs */
+  public static int frameSize(String[] regs, int nargs) {
+    int n = 0;
+    for(int i = 0; i < regs.length; i++) {
+      // Arguments after the first two are in the caller's frame
+      boolean stackArg = i >= REGISTERS.length && i < nargs;
+      if(regs[i] == null && !stackArg)
+        n++;
+    }
+    return n;
+  }
+
+  /* Gives d a free register it may use, if any */
+  void assign(Decl d) {
+    for(int r = 0; r < REGISTERS.length && d.reg == null; r++) {
+      if(d.index < REGISTERS.length && d.index < nargs && r != d.index)
+        continue;
+      if(free(REGISTERS[r], d))
+        d.reg = REGISTERS[r];
+    }
+  }
+
+  /* Puts the rest of the stack slots in registers too, if all fit
+   * and the loss on them is less than the frame costs */
+  void withoutFrame(ArrayList<Decl> order) {
+    ArrayList<Decl> spilled = new ArrayList<>();
+    for(Decl d : order)
+      if(d.reg == null && !(d.index >= REGISTERS.length && d.index < nargs))
+        spilled.add(d);
+    if(spilled.isEmpty())
+      return;
+    int gain = FRAME_CYCLES;
+    for(Decl d : spilled) {
+      assign(d);
+      gain += d.weight();
+    }
+    for(Decl d : spilled) {
+      if(d.reg == null || gain <= 0) {
+        for(Decl s : spilled)
+          s.reg = null;
+        return;
+      }
+    }
+  }
+
+  boolean free(String reg, Decl d) {
+    for(Decl o : decls)
+      if(reg.equals(o.reg) && o.interferes(d))
+        return false;
+    return true;
+  }
+
+  /*=============== Auxilaries ================ */
+  void enter() {
+    scopes.addFirst(new HashMap<>());
+    blocks.addFirst(new ArrayList<>());
+  }
+
+  void leave() {
+    position++;
+    for(Decl d : blocks.removeFirst()) {
+      d.end = position;
+      d.calls = calls - d.callsAtStart;
+    }
+    scopes.removeFirst();
+  }
+
+  Decl declare(String id) {
+    Decl d = new Decl(decls.size(), position++);
+    d.callsAtStart = calls;
+    decls.add(d);
+    scopes.getFirst().put(id, d);
+    blocks.getFirst().add(d);
+    return d;
+  }
+
+  /* Local declaration of id, null for globals */
+  Decl lookup(String id) {
+    for(Map<String, Decl> m : scopes) {
+      Decl d = m.get(id);
+      if(d != null)
+        return d;
+    }
+    return null;
+  }
+
+  void use(String id, Use u) {
+    position++;
+    Decl d = lookup(id);
+    if(d != null)
+      d.gain += u.gain * weight;
+  }
+
+  /* Loaded into a register with one instruction */
+  static boolean simple(Exp e) {
+    return e instanceof EInt || e instanceof EId;
+  }
+
+  /* Variable of ++ or --, null for anything else */
+  static String stepped(Exp e) {
+    if(e instanceof EIncr)  return ((EIncr)e).id_;
+    if(e instanceof EDecr)  return ((EDecr)e).id_;
+    if(e instanceof EPIncr) return ((EPIncr)e).id_;
+    if(e instanceof EPDecr) return ((EPDecr)e).id_;
+    return null;
+  }
+
+  void scan(Exp e, Use u) {
+    e.accept(this, u);
+  }
+
+  Void compare(Exp e1, Exp e2) {
+    if(e1 instanceof EId && simple(e2))
+      use(((EId)e1).id_, Use.COMPARE);
+    else
+      scan(e1, Use.LOAD);
+    scan(e2, Use.OPERAND);
+    return null;
+  }
+
+  Void operator(Exp e1, Exp e2) {
+    scan(e1, Use.LOAD);
+    scan(e2, Use.OPERAND);
+    return null;
+  }
+
+  /*==================== Statements ====================*/
+  public Void visit(SDecls p, Void arg) {
+    for(String id : p.listid_)
+      if(!(p.type_ instanceof TVoid))
+        declare(id);
+    return null;
+  }
+
+  public Void visit(SInit p, Void arg) {
+    scan(p.exp_, Use.LOAD);
+    Decl d = declare(p.id_);
+    d.gain += (simple(p.exp_) ? Use.SET : Use.SET_VALUE).gain * weight;
+    return null;
+  }
+
+  public Void visit(SExp p, Void arg) {
+    Exp e = p.exp_;
+    if(stepped(e) != null) {
+      use(stepped(e), Use.STEP);
+      return null;
+    }
+    if(e instanceof EAss && simple(((EAss)e).exp_)) {
+      scan(((EAss)e).exp_, Use.LOAD);
+      use(((EAss)e).id_, Use.SET);
+      return null;
+    }
+    scan(e, Use.LOAD);
+    return null;
+  }
+
+  public Void visit(SReturn p, Void arg) {
+    scan(p.exp_, Use.LOAD);
+    return null;
+  }
+
+  public Void visit(SIfElse p, Void arg) {
+    scan(p.exp_, Use.LOAD);
+    enter();
+    p.stm_1.accept(this, null);
+    leave();
+    enter();
+    p.stm_2.accept(this, null);
+    leave();
+    return null;
+  }
+
+  public Void visit(SBlock p, Void arg) {
+    enter();
+    for(Stm s : p.liststm_)
+      s.accept(this, null);
+    leave();
+    return null;
+  }
+
+  public Void visit(SWhile p, Void arg) {
+    weight *= 8;
+    scan(p.exp_, Use.LOAD);
+    enter();
+    p.stm_.accept(this, null);
+    leave();
+    weight /= 8;
+    return null;
+  }
+
+  /* ==================== Expressions ==================== */
+  public Void visit(EInt p, Use u)   { return null; }
+  public Void visit(ETrue p, Use u)  { return null; }
+  public Void visit(EFalse p, Use u) { return null; }
+
+  public Void visit(EId p, Use u) {
+    use(p.id_, u);
+    return null;
+  }
+
+  public Void visit(ECall p, Use u) {
+    for(Exp e : p.listexp_)
+      scan(e, Use.LOAD);
+    calls += weight;
+    return null;
+  }
+
+  public Void visit(EPIncr p, Use u) { use(p.id_, Use.STEP_VALUE); return null; }
+  public Void visit(EPDecr p, Use u) { use(p.id_, Use.STEP_VALUE); return null; }
+  public Void visit(EIncr p, Use u)  { use(p.id_, Use.STEP_VALUE); return null; }
+  public Void visit(EDecr p, Use u)  { use(p.id_, Use.STEP_VALUE); return null; }
+
+  public Void visit(EMul p, Use u) { return operator(p.exp_1, p.exp_2); }
+  public Void visit(EDiv p, Use u) { return operator(p.exp_1, p.exp_2); }
+  public Void visit(EAdd p, Use u) { return operator(p.exp_1, p.exp_2); }
+  public Void visit(ESub p, Use u) { return operator(p.exp_1, p.exp_2); }
+
+  public Void visit(ELt p, Use u)  { return compare(p.exp_1, p.exp_2); }
+  public Void visit(EGt p, Use u)  { return compare(p.exp_1, p.exp_2); }
+  public Void visit(ELEq p, Use u) { return compare(p.exp_1, p.exp_2); }
+  public Void visit(EGeq p, Use u) { return compare(p.exp_1, p.exp_2); }
+  public Void visit(EEq p, Use u)  { return compare(p.exp_1, p.exp_2); }
+  public Void visit(ENeq p, Use u) { return compare(p.exp_1, p.exp_2); }
+
+  // Both sides are tested in A
+  public Void visit(EAnd p, Use u) { scan(p.exp_1, Use.LOAD); scan(p.exp_2, Use.LOAD); return null; }
+  public Void visit(EOr p, Use u)  { scan(p.exp_1, Use.LOAD); scan(p.exp_2, Use.LOAD); return null; }
+
+  public Void visit(EAss p, Use u) {
+    scan(p.exp_, Use.LOAD);
+    use(p.id_, Use.SET_VALUE);
+    return null;
+  }
+}
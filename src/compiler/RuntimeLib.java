@@ -0,0 +1,120 @@
+package compiler;
+
+import java.util.*;
+
+/* Runtime library for operations FLISP has no instruction for.
+ *
+ * A helper takes the left operand pushed first and the right one
+ * pushed last, and leaves the result in A. The caller drops the
+ * operands. Only A and the flags are changed, so X and Y need not
+ * be saved around a helper. Compiler adds a helper to the output
+ * only when something calls it.
+ * */
+class RuntimeLib {
+  static final String MUL = "__mul";
+  static final String DIV = "__div";
+
+  static ArrayList<Code> code(String helper) {
+    switch(helper) {
+      case MUL: return mul();
+      case DIV: return div();
+    }
+    throw new RuntimeException("Unknown runtime helper: " + helper);
+  }
+
+  static Label label(String helper, String name) {
+    return new IdLabel(helper + "_" + name);
+  }
+
+  /* Shift and add, one step per bit of the right operand.
+   * Stops as soon as no bits are left, so small factors are fast.
+   *
+   *  0,SP  product    2,SP  right (shifted out)
+   *  1,SP  return     3,SP  left  (shifted up)
+   * */
+  static ArrayList<Code> mul() {
+    Label loop = label(MUL, "loop");
+    Label skip = label(MUL, "skip");
+    Label done = label(MUL, "done");
+    return new ArrayList<>(Arrays.asList(
+      new Target(new IdLabel(MUL)),
+      new Load(AddrMethod.IMMEDIATE, 0),
+      new Push("A"),
+      new Target(loop),
+      new Load(AddrMethod.NS, 2),
+      new Beq(done),
+      new Lsr(AddrMethod.INHERENT),
+      new Store(AddrMethod.NS, 2),
+      new Bcc(skip),
+      new Load(AddrMethod.NS, 0),
+      new Add(AddrMethod.NS, 3),
+      new Store(AddrMethod.NS, 0),
+      new Target(skip),
+      new Lsl(AddrMethod.NS, 3),
+      new Bra(loop),
+      new Target(done),
+      new Pull("A"),
+      new Return()));
+  }
+
+  /* Signed division rounded toward zero. Both operands are made
+   * positive, divided by restoring shift and subtract (the left
+   * operand is shifted into the remainder and the quotient bits
+   * shifted in behind it), and the quotient is negated if exactly
+   * one operand was negative.
+   *
+   *  0,SP  bits left    4,SP  right
+   *  1,SP  remainder    5,SP  left, becomes the quotient
+   *  2,SP  negative operands
+   *  3,SP  return
+   * */
+  static ArrayList<Code> div() {
+    Label lpos = label(DIV, "lpos");
+    Label rpos = label(DIV, "rpos");
+    Label loop = label(DIV, "loop");
+    Label skip = label(DIV, "skip");
+    Label done = label(DIV, "done");
+    return new ArrayList<>(Arrays.asList(
+      new Target(new IdLabel(DIV)),
+      new Load(AddrMethod.IMMEDIATE, 0),
+      new Push("A"),
+      new Load(AddrMethod.NS, 3),
+      new Bge(lpos),
+      new Neg(AddrMethod.INHERENT),
+      new Store(AddrMethod.NS, 3),
+      new Inc(AddrMethod.NS, 0),
+      new Target(lpos),
+      new Load(AddrMethod.NS, 2),
+      new Bge(rpos),
+      new Neg(AddrMethod.INHERENT),
+      new Store(AddrMethod.NS, 2),
+      new Inc(AddrMethod.NS, 0),
+      new Target(rpos),
+      new Load(AddrMethod.IMMEDIATE, 0),
+      new Push("A"),
+      new Load(AddrMethod.IMMEDIATE, 8),
+      new Push("A"),
+      new Target(loop),
+      new Lsl(AddrMethod.NS, 5),
+      new Rol(AddrMethod.NS, 1),
+      new Load(AddrMethod.NS, 1),
+      new Cmp(AddrMethod.NS, 4),
+      new Bcs(skip),
+      new Sub(AddrMethod.NS, 4),
+      new Store(AddrMethod.NS, 1),
+      new Inc(AddrMethod.NS, 5),
+      new Target(skip),
+      new Dec(AddrMethod.NS, 0),
+      new Bne(loop),
+      new Load(AddrMethod.NS, 2),
+      new Cmp(AddrMethod.IMMEDIATE, 1),
+      new Bne(done),
+      new Load(AddrMethod.IMMEDIATE, 0),
+      new Sub(AddrMethod.NS, 5),
+      new Store(AddrMethod.NS, 5),
+      new Target(done),
+      new Load(AddrMethod.NS, 5),
+      new Leasp(3),
+      new Return()));
+  }
+}
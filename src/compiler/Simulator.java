@@ -0,0 +1,508 @@
+package compiler;
+
+import java.util.*;
+
+/* FLISP simulator, runs a compiled program without external tools.
+ *
+ * The instructions of an Assembly are laid out the way the assembler
+ * places them (ORG, RMB and the size of every instruction from Cost)
+ * and decoded once into arrays, so the main loop is a switch over
+ * small integers. A, X, Y and SP are 8 bit and CC holds N, Z, V and C.
+ * Memory is 256 bytes. Writing to a byte that holds code is an error,
+ * which catches a stack growing into the program.
+ *
+ * SP starts at $20, just below main. The program stops at a branch to
+ * itself, which ends main, and the result is what A holds then. Every
+ * instruction is charged the cycles of its opcode in Cost, the count
+ * for a conditional branch depends on whether it is taken. Those
+ * counts are estimates, see Cost.
+ * */
+public class Simulator {
+  public static final int MEMORY    = 256;
+  public static final int STACK_TOP = 0x20;
+
+  // Stop runaway programs
+  public static final long MAX_STEPS = 100_000_000L;
+
+  // Operations
+  static final int LD = 0, ST = 1, ADD = 2, SUB = 3, CMP = 4, INC = 5, DEC = 6,
+    LSL = 7, LSR = 8, ASR = 9, ROL = 10, NEG = 11, TST = 12, PSH = 13, PUL = 14,
+    LEASP = 15, LEA = 16, NOP = 17, BEQ = 18, BNE = 19, BGE = 20, BLT = 21,
+    BGT = 22, BLE = 23, BCC = 24, BCS = 25, BRA = 26, JSR = 27, JMP = 28, RTS = 29;
+
+  // Operand modes
+  static final int INH = 0, IMM = 1, ABS = 2, NS = 3;
+
+  // Decoded program, one entry per instruction
+  int[] op;
+  int[] mode;
+  int[] reg;      // 0 = A, 1 = X, 2 = Y
+  int[] arg;      // data, address, offset or target instruction
+  int[] cyc;
+  int[] notTaken; // cycles of a conditional branch falling through
+  int[] addr;
+  Code[] source;
+  String[] function;    // function the instruction is in
+  String[] statement;   // source statement it was compiled from
+  int size;
+
+  // Instruction at each address, -1 if none
+  final int[] at = new int[MEMORY];
+  final boolean[] code = new boolean[MEMORY];
+  final Map<String, Integer> symbols = new HashMap<>();
+  int entry;
+
+  // Counts where time goes when set, see Profiler
+  Profiler profiler;
+
+  // Machine state
+  final int[] mem = new int[MEMORY];
+  final int[] r = new int[3];
+  int sp;
+  int pc;
+  boolean n, z, v, c;
+  long steps;
+  long cycles;
+
+  public Simulator(Assembly asm) {
+    ArrayList<Code> all = new ArrayList<>(asm.globals);
+    ArrayList<String> owner = new ArrayList<>();
+    for(Code c : asm.globals)
+      owner.add(null);
+    for(FuncCode f : asm.functions) {
+      all.addAll(f.code);
+      for(Code c : f.code)
+        owner.add(f.id);
+    }
+    load(all, owner);
+  }
+
+  /*=============== Loading ================ */
+
+  /* ORG takes the digits as hex, ORG 20 is $20 */
+  static int org(Org o) {
+    return Integer.parseInt(Integer.toString(o.address), 16);
+  }
+
+  void load(ArrayList<Code> all, ArrayList<String> owner) {
+    int n = 0;
+    for(Code c : all)
+      if(executable(c))
+        n++;
+    op     = new int[n];
+    mode   = new int[n];
+    reg    = new int[n];
+    arg    = new int[n];
+    cyc    = new int[n];
+    notTaken = new int[n];
+    addr   = new int[n];
+    source = new Code[n];
+    function  = new String[n];
+    statement = new String[n];
+    Arrays.fill(at, -1);
+
+    // First pass: addresses of labels and instructions
+    Map<Label, Integer> targets = new HashMap<>();
+    int address = 0;
+    String current = null;
+    String text = null;
+    for(int k = 0; k < all.size(); k++) {
+      Code c = all.get(k);
+      if(owner.get(k) != current) {
+        current = owner.get(k);
+        text = "(entry)";
+      }
+      if(c instanceof Comment) {
+        text = ((Comment)c).comment.trim().replaceAll("\\s+", " ");
+      } else if(c instanceof Org) {
+        address = org((Org)c);
+      } else if(c instanceof VarTarget) {
+        VarTarget t = (VarTarget)c;
+        symbols.put(t.id, address);
+        if(t.code instanceof Rmb)
+          address += ((Rmb)t.code).bytes;
+      } else if(c instanceof Rmb) {
+        address += ((Rmb)c).bytes;
+      } else if(c instanceof Target) {
+        targets.put(((Target)c).label, size);
+        if(((Target)c).label instanceof IdLabel)
+          symbols.put(((Target)c).label.toString(), address);
+      } else if(executable(c)) {
+        if(address >= MEMORY)
+          throw new RuntimeException("Program does not fit in memory");
+        source[size] = c;
+        function[size] = current;
+        statement[size] = text;
+        addr[size] = address;
+        cyc[size] = Cost.cycles(c);
+        notTaken[size] = Cost.notTaken(c);
+        at[address] = size;
+        int bytes = Cost.bytes(c);
+        for(int i = 0; i < bytes && address + i < MEMORY; i++)
+          code[address + i] = true;
+        address += bytes;
+        size++;
+      }
+    }
+
+    // Second pass: operands
+    Decoder d = new Decoder(targets);
+    for(int i = 0; i < size; i++) {
+      d.i = i;
+      source[i].accept(d);
+    }
+
+    Integer main = targets.get(new IdLabel("main"));
+    if(main == null)
+      throw new RuntimeException("No main to run");
+    entry = main;
+  }
+
+  static boolean executable(Code c) {
+    return !(c instanceof Comment || c instanceof Target || c instanceof VarTarget
+        || c instanceof Org || c instanceof Rmb);
+  }
+
+  /* Fills in op, mode, reg and arg of instruction i */
+  class Decoder implements CodeVisitor<Void> {
+    final Map<Label, Integer> targets;
+    int i;
+
+    Decoder(Map<Label, Integer> targets) {
+      this.targets = targets;
+    }
+
+    int regOf(String name) {
+      switch(name) {
+        case "X": return 1;
+        case "Y": return 2;
+      }
+      return 0;
+    }
+
+    void operand(int o, Addressable a) {
+      op[i] = o;
+      reg[i] = regOf(a.reg);
+      switch(a.m) {
+        case IMMEDIATE:
+          mode[i] = IMM;
+          arg[i] = a.data & 0xFF;
+          break;
+        case ABSOLUTE:
+          mode[i] = ABS;
+          arg[i] = a.label != null && !a.label.isEmpty() ? symbol(a.label) : a.address;
+          break;
+        case NS:
+          mode[i] = NS;
+          arg[i] = a.index;
+          break;
+        default:
+          mode[i] = INH;
+      }
+    }
+
+    int symbol(String id) {
+      Integer s = symbols.get(id);
+      if(s == null)
+        throw new RuntimeException("Undefined symbol: " + id);
+      return s;
+    }
+
+    void jump(int o, Label l) {
+      Integer t = targets.get(l);
+      if(t == null)
+        throw new RuntimeException("Undefined label: " + l);
+      op[i] = o;
+      arg[i] = t;
+    }
+
+    public Void visit(Comment c)   { return null; }
+    public Void visit(Target c)    { return null; }
+    public Void visit(VarTarget c) { return null; }
+    public Void visit(Org c)       { return null; }
+    public Void visit(Rmb c)       { return null; }
+    public Void visit(Pull c)      { op[i] = PUL; reg[i] = regOf(c.reg); return null; }
+    public Void visit(Push c)      { op[i] = PSH; reg[i] = regOf(c.reg); return null; }
+    public Void visit(Add c)       { operand(ADD, c); return null; }
+    public Void visit(Sub c)       { operand(SUB, c); return null; }
+    public Void visit(Return c)    { op[i] = RTS; return null; }
+    public Void visit(Load c)      { operand(LD, c); return null; }
+    public Void visit(Store c)     { operand(ST, c); return null; }
+    public Void visit(Leasp c)     { op[i] = LEASP; arg[i] = c.index; return null; }
+    public Void visit(Lea c)       { op[i] = LEA; reg[i] = regOf(c.reg); arg[i] = c.index; return null; }
+    public Void visit(Test c)      { op[i] = TST; return null; }
+    public Void visit(Nop c)       { op[i] = NOP; return null; }
+    public Void visit(Cmp c)       { operand(CMP, c); return null; }
+    public Void visit(Inc c)       { operand(INC, c); return null; }
+    public Void visit(Dec c)       { operand(DEC, c); return null; }
+    public Void visit(Lsl c)       { operand(LSL, c); return null; }
+    public Void visit(Lsr c)       { operand(LSR, c); return null; }
+    public Void visit(Asr c)       { operand(ASR, c); return null; }
+    public Void visit(Rol c)       { operand(ROL, c); return null; }
+    public Void visit(Neg c)       { operand(NEG, c); return null; }
+    public Void visit(Beq c)       { jump(BEQ, c.label); return null; }
+    public Void visit(Bge c)       { jump(BGE, c.label); return null; }
+    public Void visit(Bgt c)       { jump(BGT, c.label); return null; }
+    public Void visit(Ble c)       { jump(BLE, c.label); return null; }
+    public Void visit(Blt c)       { jump(BLT, c.label); return null; }
+    public Void visit(Bne c)       { jump(BNE, c.label); return null; }
+    public Void visit(Bcc c)       { jump(BCC, c.label); return null; }
+    public Void visit(Bcs c)       { jump(BCS, c.label); return null; }
+    public Void visit(Bra c)       { jump(BRA, c.label); return null; }
+    public Void visit(Jsr c)       { jump(JSR, c.label); return null; }
+    public Void visit(Jmp c)       { jump(JMP, c.label); return null; }
+  }
+
+  /*=============== Running ================ */
+
+  /* Clears memory and registers and starts over at main */
+  public void reset() {
+    Arrays.fill(mem, 0);
+    Arrays.fill(r, 0);
+    sp = STACK_TOP;
+    pc = entry;
+    n = z = v = c = false;
+    steps = 0;
+    cycles = 0;
+  }
+
+  /* Runs main to its end, returns A */
+  public int run() {
+    reset();
+    return resume(MAX_STEPS);
+  }
+
+  /* Runs at most limit more instructions, returns A */
+  public int resume(long limit) {
+    long stop = steps + limit;
+    while(true) {
+      if(steps == stop)
+        throw new RuntimeException("No end after " + steps + " instructions");
+      if(pc < 0 || pc >= size)
+        throw new RuntimeException("Ran out of the program");
+      int i = pc++;
+      steps++;
+      boolean taken = taken(op[i]);
+      int spent = taken ? cyc[i] : notTaken[i];
+      cycles += spent;
+      if(profiler != null)
+        profiler.step(i, spent);
+      switch(op[i]) {
+        case LD:
+          r[reg[i]] = read(i);
+          nz(r[reg[i]]);
+          v = false;
+          break;
+        case ST:
+          write(ea(i), r[reg[i]]);
+          break;
+        case ADD: {
+          int a = r[0], b = read(i), s = a + b;
+          c = s > 0xFF;
+          v = ((a ^ s) & (b ^ s) & 0x80) != 0;
+          r[0] = s & 0xFF;
+          nz(r[0]);
+          break;
+        }
+        case SUB:
+          r[0] = subtract(r[0], read(i));
+          break;
+        case CMP:
+          subtract(r[reg[i]], read(i));
+          break;
+        case INC:
+        case DEC: {
+          int d = op[i] == INC ? 1 : -1;
+          int s = (modified(i) + d) & 0xFF;
+          v = s == (d > 0 ? 0x80 : 0x7F);
+          store(i, s);
+          break;
+        }
+        case LSL: {
+          int s = modified(i);
+          c = (s & 0x80) != 0;
+          s = (s << 1) & 0xFF;
+          store(i, s);
+          v = n != c;
+          break;
+        }
+        case LSR: {
+          int s = modified(i);
+          c = (s & 1) != 0;
+          store(i, s >> 1);
+          v = n != c;
+          break;
+        }
+        case ASR: {
+          int s = modified(i);
+          c = (s & 1) != 0;
+          store(i, (s >> 1) | (s & 0x80));
+          v = n != c;
+          break;
+        }
+        case ROL: {
+          int s = modified(i);
+          boolean out = (s & 0x80) != 0;
+          store(i, ((s << 1) | (c ? 1 : 0)) & 0xFF);
+          c = out;
+          v = n != c;
+          break;
+        }
+        case NEG: {
+          int s = modified(i);
+          c = s != 0;
+          v = s == 0x80;
+          store(i, (-s) & 0xFF);
+          break;
+        }
+        case TST:
+          nz(r[0]);
+          v = false;
+          c = false;
+          break;
+        case PSH:
+          sp = (sp - 1) & 0xFF;
+          write(sp, r[reg[i]]);
+          break;
+        case PUL:
+          r[reg[i]] = mem[sp];
+          sp = (sp + 1) & 0xFF;
+          break;
+        case LEASP:
+          sp = (sp + arg[i]) & 0xFF;
+          break;
+        case LEA:
+          r[reg[i]] = (r[reg[i]] + arg[i]) & 0xFF;
+          break;
+        case NOP:
+          break;
+        case BEQ:
+        case BNE:
+        case BGE:
+        case BLT:
+        case BGT:
+        case BLE:
+        case BCC:
+        case BCS:
+          if(taken)
+            pc = arg[i];
+          break;
+        case BRA:
+          // A branch to itself is where the program ends
+          if(arg[i] == i)
+            return r[0];
+          pc = arg[i];
+          break;
+        case JSR:
+          sp = (sp - 1) & 0xFF;
+          write(sp, (addr[i] + Cost.bytes(source[i])) & 0xFF);
+          pc = arg[i];
+          break;
+        case JMP:
+          pc = arg[i];
+          break;
+        case RTS: {
+          int ret = mem[sp];
+          sp = (sp + 1) & 0xFF;
+          pc = at[ret];
+          if(pc < 0)
+            throw new RuntimeException(String.format("RTS to $%02X, not an instruction", ret));
+          break;
+        }
+      }
+    }
+  }
+
+  /*=============== Helpers ================ */
+
+  /* Whether an instruction with operation o goes where it branches
+   * to, from the flags. Only a conditional branch can fall through. */
+  boolean taken(int o) {
+    switch(o) {
+      case BEQ: return z;
+      case BNE: return !z;
+      case BGE: return n == v;
+      case BLT: return n != v;
+      case BGT: return !z && n == v;
+      case BLE: return z || n != v;
+      case BCC: return !c;
+      case BCS: return c;
+    }
+    return true;
+  }
+
+  void nz(int value) {
+    n = (value & 0x80) != 0;
+    z = value == 0;
+  }
+
+  /* Flags of a - b as SUBA and CMPA set them */
+  int subtract(int a, int b) {
+    int s = (a - b) & 0xFF;
+    c = b > a;
+    v = ((a ^ b) & (a ^ s) & 0x80) != 0;
+    nz(s);
+    return s;
+  }
+
+  /* Effective address of a memory operand */
+  int ea(int i) {
+    return mode[i] == NS ? (sp + arg[i]) & 0xFF : arg[i];
+  }
+
+  int read(int i) {
+    return mode[i] == IMM ? arg[i] : mem[ea(i)];
+  }
+
+  /* Operand of a read-modify-write instruction, A if inherent */
+  int modified(int i) {
+    return mode[i] == INH ? r[0] : mem[ea(i)];
+  }
+
+  void store(int i, int value) {
+    if(mode[i] == INH)
+      r[0] = value;
+    else
+      write(ea(i), value);
+    nz(value);
+  }
+
+  void write(int address, int value) {
+    if(code[address])
+      throw new RuntimeException(String.format(
+            "Write to $%02X overwrites the program (SP=$%02X)", address, sp));
+    mem[address] = value & 0xFF;
+  }
+
+  /*=============== Inspection ================ */
+
+  /* Starts counting cycles per instruction and call stack */
+  public Profiler profile() {
+    profiler = new Profiler(this);
+    return profiler;
+  }
+
+  public int a()          { return r[0]; }
+  public int x()          { return r[1]; }
+  public int y()          { return r[2]; }
+  public int sp()         { return sp; }
+  public long steps()     { return steps; }
+  public long cycles()    { return cycles; }
+
+  public int memory(int address) {
+    return mem[address & 0xFF];
+  }
+
+  /* Value of a global variable */
+  public int global(String id) {
+    Integer a = symbols.get(id);
+    if(a == null)
+      throw new RuntimeException("Undefined symbol: " + id);
+    return mem[a];
+  }
+
+  /* Address of a label or variable, null if undefined */
+  public Integer address(String id) {
+    return symbols.get(id);
+  }
+}
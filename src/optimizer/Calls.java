@@ -0,0 +1,105 @@
+package optimizer;
+
+import C.Absyn.*;
+import java.util.*;
+
+/**
+ * Collects the functions called by a function body and
+ * computes which functions can be reached from an entry point.
+ * */
+public class Calls implements
+  Stm.Visitor<Void, Set<String>>,
+  Exp.Visitor<Void, Set<String>>
+{
+  /* Functions called directly from p */
+  public Set<String> in(DFunc p) {
+    Set<String> ids = new LinkedHashSet<>();
+    for(Stm s : p.liststm_)
+      s.accept(this, ids);
+    return ids;
+  }
+
+  /* Functions reachable from root through calls, root included */
+  public Set<String> reachable(Prg p, String root) {
+    Map<String, DFunc> funcs = new HashMap<>();
+    for(Def d : p.listdef_)
+      if(d instanceof DFunc)
+        funcs.put(((DFunc)d).id_, (DFunc)d);
+
+    Set<String> seen = new HashSet<>();
+    Deque<String> todo = new ArrayDeque<>();
+    todo.push(root);
+    while(!todo.isEmpty()) {
+      String id = todo.pop();
+      if(!seen.add(id))
+        continue;
+      DFunc f = funcs.get(id);
+      if(f != null)
+        todo.addAll(in(f));
+    }
+    return seen;
+  }
+
+  /*==================== Statements ====================*/
+  public Void visit(SDecls p, Set<String> ids)  { return null; }
+  public Void visit(SInit p, Set<String> ids)   { return p.exp_.accept(this, ids); }
+  public Void visit(SExp p, Set<String> ids)    { return p.exp_.accept(this, ids); }
+  public Void visit(SReturn p, Set<String> ids) { return p.exp_.accept(this, ids); }
+
+  public Void visit(SIfElse p, Set<String> ids) {
+    p.exp_.accept(this, ids);
+    p.stm_1.accept(this, ids);
+    return p.stm_2.accept(this, ids);
+  }
+
+  public Void visit(SBlock p, Set<String> ids) {
+    for(Stm s : p.liststm_)
+      s.accept(this, ids);
+    return null;
+  }
+
+  public Void visit(SWhile p, Set<String> ids) {
+    p.exp_.accept(this, ids);
+    return p.stm_.accept(this, ids);
+  }
+
+  /* ==================== Expressions ==================== */
+  public Void visit(EInt p, Set<String> ids)   { return null; }
+  public Void visit(ETrue p, Set<String> ids)  { return null; }
+  public Void visit(EFalse p, Set<String> ids) { return null; }
+  public Void visit(EId p, Set<String> ids)    { return null; }
+
+  public Void visit(ECall p, Set<String> ids) {
+    ids.add(p.id_);
+    for(Exp e : p.listexp_)
+      e.accept(this, ids);
+    return null;
+  }
+
+  public Void visit(EPIncr p, Set<String> ids) { return null; }
+  public Void visit(EPDecr p, Set<String> ids) { return null; }
+  public Void visit(EIncr p, Set<String> ids)  { return null; }
+  public Void visit(EDecr p, Set<String> ids)  { return null; }
+
+  public Void visit(EMul p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(EDiv p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(EAdd p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(ESub p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(ELt p, Set<String> ids)  { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(EGt p, Set<String> ids)  { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(ELEq p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(EGeq p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(EEq p, Set<String> ids)  { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(ENeq p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(EAnd p, Set<String> ids) { return both(p.exp_1, p.exp_2, ids); }
+  public Void visit(EOr p, Set<String> ids)  { return both(p.exp_1, p.exp_2, ids); }
+
+  public Void visit(EAss p, Set<String> ids) {
+    return p.exp_.accept(this, ids);
+  }
+
+  Void both(Exp e1, Exp e2, Set<String> ids) {
+    e1.accept(this, ids);
+    return e2.accept(this, ids);
+  }
+}
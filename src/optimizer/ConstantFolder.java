@@ -0,0 +1,367 @@
+package optimizer;
+
+import C.Absyn.*;
+import java.util.*;
+
+/**
+ * Constant folding and propagation.
+ * Runs on the type checked tree and returns a new tree where
+ * expressions with known values are replaced by literals, so the
+ * compiler emits immediate operands instead of computing them.
+ *
+ * Integers are 8 bit: results wrap around and are kept as the
+ * unsigned byte (0..255) while comparisons and division use the
+ * signed value, as the target does. Only local variables are
+ * propagated, globals can be changed by any call.
+ * */
+public class ConstantFolder implements
+  Program.Visitor<Program, Void>,
+  Def.Visitor<Def, Void>,
+  Stm.Visitor<Stm, Void>,
+  Exp.Visitor<Exp, Void>
+{
+  // Built-in types
+  final Type INT    = new TInt();
+  final Type BOOL   = new TBool();
+
+  // Known value of every local in scope, null if unknown.
+  // Innermost block first.
+  LinkedList<Map<String, Exp>> env;
+
+  /* Entry point */
+  public Program fold(Program p) {
+    return p.accept(this, null);
+  }
+
+  /*=============== Auxilaries ================ */
+  public Exp fold(Exp e) {
+    Exp f = e.accept(this, null);
+    if(f.getType() == null)
+      f.setType(e.getType());
+    return f;
+  }
+
+  public Stm fold(Stm s) {
+    return s.accept(this, null);
+  }
+
+  public ListStm fold(ListStm l) {
+    ListStm r = new ListStm();
+    for(Stm s : l)
+      r.add(fold(s));
+    return r;
+  }
+
+  public void enterScope() {
+    env.addFirst(new HashMap<>());
+  }
+
+  public void leaveScope() {
+    env.removeFirst();
+  }
+
+  public void declare(String id, Exp value) {
+    env.getFirst().put(id, isLiteral(value) ? value : null);
+  }
+
+  /* Known value of a local, null if unknown or global. */
+  public Exp lookup(String id) {
+    for(Map<String, Exp> m : env)
+      if(m.containsKey(id))
+        return m.get(id);
+    return null;
+  }
+
+  /* New value of a variable, null if unknown. */
+  public void set(String id, Exp value) {
+    for(Map<String, Exp> m : env) {
+      if(m.containsKey(id)) {
+        m.put(id, isLiteral(value) ? value : null);
+        return;
+      }
+    }
+  }
+
+  public void kill(Set<String> ids) {
+    for(String id : ids)
+      set(id, null);
+  }
+
+  public LinkedList<Map<String, Exp>> copyEnv() {
+    LinkedList<Map<String, Exp>> c = new LinkedList<>();
+    for(Map<String, Exp> m : env)
+      c.add(new HashMap<>(m));
+    return c;
+  }
+
+  /* Keeps values that are the same on both paths. */
+  public void merge(LinkedList<Map<String, Exp>> other) {
+    Iterator<Map<String, Exp>> it = other.iterator();
+    for(Map<String, Exp> m : env) {
+      Map<String, Exp> o = it.next();
+      for(Map.Entry<String, Exp> e : m.entrySet()) {
+        Exp v = o.get(e.getKey());
+        if(e.getValue() == null || v == null || value(v) != value(e.getValue()))
+          e.setValue(null);
+      }
+    }
+  }
+
+  public static boolean isLiteral(Exp e) {
+    return e instanceof EInt || e instanceof ETrue || e instanceof EFalse;
+  }
+
+  /* Unsigned byte of a literal */
+  public static int value(Exp e) {
+    if(e instanceof EInt)
+      return ((EInt)e).integer_ & 0xFF;
+    return e instanceof ETrue ? 1 : 0;
+  }
+
+  /* Signed value of a literal */
+  public static int signed(Exp e) {
+    return (byte) value(e);
+  }
+
+  public Exp intLit(int v) {
+    Exp e = new EInt(v & 0xFF);
+    e.setType(INT);
+    return e;
+  }
+
+  public Exp boolLit(boolean b) {
+    Exp e = b ? new ETrue() : new EFalse();
+    e.setType(BOOL);
+    return e;
+  }
+
+  /* Literal of the same kind as e holding v */
+  public Exp literal(Exp e, int v) {
+    if(e instanceof EInt)
+      return intLit(v);
+    return boolLit(v != 0);
+  }
+
+  /*================ Program ===================*/
+  public Program visit(Prg p, Void arg) {
+    ListDef defs = new ListDef();
+    for(Def d : p.listdef_)
+      defs.add(d.accept(this, null));
+    return new Prg(defs);
+  }
+
+  /*================ Function defs. ============*/
+  public Def visit(DFunc p, Void arg) {
+    env = new LinkedList<>();
+    enterScope();
+    for(Arg a : p.listarg_)
+      declare(((ADecl)a).id_, null);
+    return new DFunc(p.type_, p.id_, p.listarg_, fold(p.liststm_));
+  }
+
+  /* Globals are left alone */
+  public Def visit(DGlob p, Void arg) {
+    return p;
+  }
+
+  /*==================== Statements ====================*/
+  public Stm visit(SDecls p, Void arg) {
+    for(String id : p.listid_)
+      declare(id, null);
+    return p;
+  }
+
+  public Stm visit(SInit p, Void arg) {
+    Exp e = fold(p.exp_);
+    declare(p.id_, e);
+    return new SInit(p.type_, p.id_, e);
+  }
+
+  public Stm visit(SExp p, Void arg) {
+    return new SExp(fold(p.exp_));
+  }
+
+  public Stm visit(SReturn p, Void arg) {
+    return new SReturn(fold(p.exp_));
+  }
+
+  public Stm visit(SIfElse p, Void arg) {
+    Exp cond = fold(p.exp_);
+    LinkedList<Map<String, Exp>> before = copyEnv();
+
+    enterScope();
+    Stm s1 = fold(p.stm_1);
+    leaveScope();
+
+    LinkedList<Map<String, Exp>> after1 = env;
+    env = before;
+    enterScope();
+    Stm s2 = fold(p.stm_2);
+    leaveScope();
+
+    merge(after1);
+    return new SIfElse(cond, s1, s2);
+  }
+
+  public Stm visit(SBlock p, Void arg) {
+    enterScope();
+    ListStm l = fold(p.liststm_);
+    leaveScope();
+    return new SBlock(l);
+  }
+
+  public Stm visit(SWhile p, Void arg) {
+    // Anything changed in the loop is unknown when the condition is tested
+    Set<String> changed = new Assigned().in(p);
+    kill(changed);
+    Exp cond = fold(p.exp_);
+    enterScope();
+    Stm body = fold(p.stm_);
+    leaveScope();
+    kill(changed);
+    return new SWhile(cond, body);
+  }
+
+  /* ==================== Expressions ==================== */
+  /* Literals */
+  public Exp visit(EInt p, Void arg)   { return p; }
+  public Exp visit(ETrue p, Void arg)  { return p; }
+  public Exp visit(EFalse p, Void arg) { return p; }
+
+  /* Variable */
+  public Exp visit(EId p, Void arg) {
+    Exp v = lookup(p.id_);
+    return v != null ? v : p;
+  }
+
+  public Exp visit(ECall p, Void arg) {
+    ListExp args = new ListExp();
+    for(Exp e : p.listexp_)
+      args.add(fold(e));
+    return new ECall(p.id_, args);
+  }
+
+  /* Increments keep their side effect, the new value is known */
+  public Exp visit(EPIncr p, Void arg) { step(p.id_, 1);  return p; }
+  public Exp visit(EPDecr p, Void arg) { step(p.id_, -1); return p; }
+  public Exp visit(EIncr p, Void arg)  { step(p.id_, 1);  return p; }
+  public Exp visit(EDecr p, Void arg)  { step(p.id_, -1); return p; }
+
+  void step(String id, int d) {
+    Exp v = lookup(id);
+    set(id, v == null ? null : intLit(value(v) + d));
+  }
+
+  /* Arithmetic operations */
+  public Exp visit(EAdd p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return intLit(value(e1) + value(e2));
+    if(isLiteral(e2) && value(e2) == 0)
+      return e1;
+    return new EAdd(e1, e2);
+  }
+
+  public Exp visit(ESub p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return intLit(value(e1) - value(e2));
+    if(isLiteral(e2) && value(e2) == 0)
+      return e1;
+    return new ESub(e1, e2);
+  }
+
+  public Exp visit(EMul p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return intLit(value(e1) * value(e2));
+    return new EMul(e1, e2);
+  }
+
+  public Exp visit(EDiv p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2) && value(e2) != 0)
+      return intLit(signed(e1) / signed(e2));
+    return new EDiv(e1, e2);
+  }
+
+  /* Comparisons */
+  public Exp visit(ELt p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(signed(e1) < signed(e2));
+    return new ELt(e1, e2);
+  }
+
+  public Exp visit(EGt p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(signed(e1) > signed(e2));
+    return new EGt(e1, e2);
+  }
+
+  public Exp visit(ELEq p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(signed(e1) <= signed(e2));
+    return new ELEq(e1, e2);
+  }
+
+  public Exp visit(EGeq p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(signed(e1) >= signed(e2));
+    return new EGeq(e1, e2);
+  }
+
+  public Exp visit(EEq p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(value(e1) == value(e2));
+    return new EEq(e1, e2);
+  }
+
+  public Exp visit(ENeq p, Void arg) {
+    Exp e1 = fold(p.exp_1), e2 = fold(p.exp_2);
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(value(e1) != value(e2));
+    return new ENeq(e1, e2);
+  }
+
+  /* Logic operations
+   * exp_2 is only evaluated sometimes, so whatever it
+   * assigns is unknown afterwards.
+   * */
+  public Exp visit(EAnd p, Void arg) {
+    Exp e1 = fold(p.exp_1);
+    if(isLiteral(e1) && value(e1) == 0)
+      return boolLit(false);
+    Exp e2 = fold(p.exp_2);
+    kill(new Assigned().in(p.exp_2));
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(value(e2) != 0);
+    if(isLiteral(e1) && e2.getType() instanceof TBool)
+      return e2;
+    return new EAnd(e1, e2);
+  }
+
+  public Exp visit(EOr p, Void arg) {
+    Exp e1 = fold(p.exp_1);
+    if(isLiteral(e1) && value(e1) != 0)
+      return boolLit(true);
+    Exp e2 = fold(p.exp_2);
+    kill(new Assigned().in(p.exp_2));
+    if(isLiteral(e1) && isLiteral(e2))
+      return boolLit(value(e2) != 0);
+    if(isLiteral(e1) && e2.getType() instanceof TBool)
+      return e2;
+    return new EOr(e1, e2);
+  }
+
+  /* Assign */
+  public Exp visit(EAss p, Void arg) {
+    Exp e = fold(p.exp_);
+    set(p.id_, e);
+    return new EAss(p.id_, e);
+  }
+}
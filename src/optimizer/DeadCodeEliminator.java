@@ -0,0 +1,123 @@
+package optimizer;
+
+import C.Absyn.*;
+import java.util.*;
+
+/**
+ * Dead code elimination.
+ * Runs after constant folding and removes
+ *  - the arm of an if/else that a literal condition never takes,
+ *  - while loops whose condition is false,
+ *  - statements after a return or an endless loop,
+ *  - functions that can not be reached from main.
+ * */
+public class DeadCodeEliminator implements
+  Program.Visitor<Program, Void>,
+  Def.Visitor<Def, Void>,
+  Stm.Visitor<Stm, Void>
+{
+  /* Entry point */
+  public Program eliminate(Program p) {
+    return p.accept(this, null);
+  }
+
+  /*=============== Auxilaries ================ */
+  /* Removed statements are returned as null */
+  public ListStm eliminate(ListStm l) {
+    ListStm r = new ListStm();
+    for(Stm s : l) {
+      Stm e = s.accept(this, null);
+      if(e == null)
+        continue;
+      r.add(e);
+      if(ends(e))
+        break;
+    }
+    return r;
+  }
+
+  /* True if nothing after s is ever run */
+  public static boolean ends(Stm s) {
+    if(s instanceof SReturn)
+      return true;
+    if(s instanceof SWhile)
+      return ((SWhile)s).exp_ instanceof ETrue;
+    if(s instanceof SBlock) {
+      ListStm l = ((SBlock)s).liststm_;
+      return !l.isEmpty() && ends(l.getLast());
+    }
+    if(s instanceof SIfElse)
+      return ends(((SIfElse)s).stm_1) && ends(((SIfElse)s).stm_2);
+    return false;
+  }
+
+  /* Wraps a single statement in its own scope */
+  public static SBlock block(Stm s) {
+    if(s instanceof SBlock)
+      return (SBlock)s;
+    ListStm l = new ListStm();
+    if(s != null)
+      l.add(s);
+    return new SBlock(l);
+  }
+
+  public static Stm orEmpty(Stm s) {
+    return s != null ? s : block(null);
+  }
+
+  /*================ Program ===================*/
+  public Program visit(Prg p, Void arg) {
+    ListDef defs = new ListDef();
+    for(Def d : p.listdef_)
+      defs.add(d.accept(this, null));
+    return unused(new Prg(defs));
+  }
+
+  /* Drops the functions main never calls. Calls in removed code
+   * do not keep a function alive. */
+  public Program unused(Prg p) {
+    Set<String> live = new Calls().reachable(p, "main");
+    ListDef used = new ListDef();
+    for(Def d : p.listdef_) {
+      if(d instanceof DFunc && !live.contains(((DFunc)d).id_))
+        continue;
+      used.add(d);
+    }
+    return new Prg(used);
+  }
+
+  /*================ Function defs. ============*/
+  public Def visit(DFunc p, Void arg) {
+    return new DFunc(p.type_, p.id_, p.listarg_, eliminate(p.liststm_));
+  }
+
+  public Def visit(DGlob p, Void arg) {
+    return p;
+  }
+
+  /*==================== Statements ====================*/
+  public Stm visit(SDecls p, Void arg)  { return p; }
+  public Stm visit(SInit p, Void arg)   { return p; }
+  public Stm visit(SExp p, Void arg)    { return p; }
+  public Stm visit(SReturn p, Void arg) { return p; }
+
+  public Stm visit(SIfElse p, Void arg) {
+    Stm s1 = p.stm_1.accept(this, null);
+    Stm s2 = p.stm_2.accept(this, null);
+    if(p.exp_ instanceof ETrue)
+      return block(s1);
+    if(p.exp_ instanceof EFalse)
+      return block(s2);
+    return new SIfElse(p.exp_, orEmpty(s1), orEmpty(s2));
+  }
+
+  public Stm visit(SBlock p, Void arg) {
+    return new SBlock(eliminate(p.liststm_));
+  }
+
+  public Stm visit(SWhile p, Void arg) {
+    if(p.exp_ instanceof EFalse)
+      return null;
+    return new SWhile(p.exp_, orEmpty(p.stm_.accept(this, null)));
+  }
+}
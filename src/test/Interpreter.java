@@ -0,0 +1,214 @@
+package test;
+
+import java.util.*;
+import C.Absyn.*;
+
+/* Runs a program the way C runs it on an 8 bit machine, what the
+ * compiled code is compared with.
+ *
+ * Every int is a signed byte: +, - and * wrap around, / rounds toward
+ * zero, comparisons are signed and give 1 or 0, && and || only
+ * evaluate the right operand when needed. Globals start at 0. The
+ * tree is walked as parsed, nothing is type checked or optimized, so
+ * a mistake in those passes can not hide here too.
+ *
+ * A statement gives the value of a return in it, null if it did not
+ * return.
+ * */
+public class Interpreter implements Stm.Visitor<Integer, Void>, Exp.Visitor<Integer, Void> {
+  // Stop runaway programs, like the simulator
+  static final long MAX_STEPS = 10_000_000L;
+
+  final Map<String, DFunc> functions = new HashMap<>();
+  final Map<String, Integer> globals = new HashMap<>();
+
+  // Blocks of the function running, innermost first
+  Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
+  long steps;
+
+  /* What main of p returns */
+  public static int run(Program p) {
+    return new Interpreter().main((Prg)p);
+  }
+
+  int main(Prg p) {
+    for (Def d : p.listdef_) {
+      if (d instanceof DFunc) {
+        functions.put(((DFunc)d).id_, (DFunc)d);
+      } else {
+        Stm s = ((DGlob)d).stm_;
+        if (s instanceof SDecls)
+          for (String id : ((SDecls)s).listid_)
+            globals.put(id, 0);
+        else if (s instanceof SInit)
+          globals.put(((SInit)s).id_, eval(((SInit)s).exp_));
+      }
+    }
+    return call("main", new ArrayList<>());
+  }
+
+  int call(String id, List<Integer> args) {
+    DFunc f = functions.get(id);
+    if (f == null)
+      throw new RuntimeException("No function " + id);
+    Deque<Map<String, Integer>> caller = scopes;
+    scopes = new ArrayDeque<>();
+    scopes.push(new HashMap<>());
+    for (int i = 0; i < f.listarg_.size(); i++)
+      scopes.peek().put(((ADecl)f.listarg_.get(i)).id_, args.get(i));
+    Integer r = block(f.liststm_);
+    scopes = caller;
+    return r == null ? 0 : r;
+  }
+
+  Integer block(List<Stm> stms) {
+    scopes.push(new HashMap<>());
+    try {
+      for (Stm s : stms) {
+        Integer r = s.accept(this, null);
+        if (r != null)
+          return r;
+      }
+      return null;
+    } finally {
+      scopes.pop();
+    }
+  }
+
+  int eval(Exp e) {
+    return e.accept(this, null);
+  }
+
+  /* Signed byte of n */
+  static int wrap(int n) {
+    return (byte)n;
+  }
+
+  static int bool(boolean b) {
+    return b ? 1 : 0;
+  }
+
+  /*=============== Variables ================ */
+
+  Map<String, Integer> scopeOf(String id) {
+    for (Map<String, Integer> s : scopes)
+      if (s.containsKey(id))
+        return s;
+    if (globals.containsKey(id))
+      return globals;
+    throw new RuntimeException("No variable " + id);
+  }
+
+  int get(String id) {
+    return scopeOf(id).get(id);
+  }
+
+  int set(String id, int value) {
+    scopeOf(id).put(id, wrap(value));
+    return wrap(value);
+  }
+
+  /*=============== Statements ================ */
+
+  public Integer visit(SExp p, Void arg) {
+    eval(p.exp_);
+    return null;
+  }
+
+  public Integer visit(SDecls p, Void arg) {
+    for (String id : p.listid_)
+      scopes.peek().put(id, 0);
+    return null;
+  }
+
+  public Integer visit(SInit p, Void arg) {
+    scopes.peek().put(p.id_, eval(p.exp_));
+    return null;
+  }
+
+  public Integer visit(SReturn p, Void arg) {
+    return eval(p.exp_);
+  }
+
+  public Integer visit(SWhile p, Void arg) {
+    while (eval(p.exp_) != 0) {
+      if (++steps > MAX_STEPS)
+        throw new RuntimeException("No end after " + steps + " iterations");
+      scopes.push(new HashMap<>());
+      try {
+        Integer r = p.stm_.accept(this, null);
+        if (r != null)
+          return r;
+      } finally {
+        scopes.pop();
+      }
+    }
+    return null;
+  }
+
+  public Integer visit(SBlock p, Void arg) {
+    return block(p.liststm_);
+  }
+
+  public Integer visit(SIfElse p, Void arg) {
+    Stm s = eval(p.exp_) != 0 ? p.stm_1 : p.stm_2;
+    scopes.push(new HashMap<>());
+    try {
+      return s.accept(this, null);
+    } finally {
+      scopes.pop();
+    }
+  }
+
+  /*=============== Expressions ================ */
+
+  public Integer visit(EInt p, Void arg)   { return wrap(p.integer_); }
+  public Integer visit(ETrue p, Void arg)  { return 1; }
+  public Integer visit(EFalse p, Void arg) { return 0; }
+  public Integer visit(EId p, Void arg)    { return get(p.id_); }
+
+  public Integer visit(ECall p, Void arg) {
+    List<Integer> args = new ArrayList<>();
+    for (Exp e : p.listexp_)
+      args.add(eval(e));
+    return call(p.id_, args);
+  }
+
+  public Integer visit(EPIncr p, Void arg) {
+    int v = get(p.id_);
+    set(p.id_, v + 1);
+    return v;
+  }
+
+  public Integer visit(EPDecr p, Void arg) {
+    int v = get(p.id_);
+    set(p.id_, v - 1);
+    return v;
+  }
+
+  public Integer visit(EIncr p, Void arg) { return set(p.id_, get(p.id_) + 1); }
+  public Integer visit(EDecr p, Void arg) { return set(p.id_, get(p.id_) - 1); }
+
+  public Integer visit(EMul p, Void arg) { return wrap(eval(p.exp_1) * eval(p.exp_2)); }
+  public Integer visit(EDiv p, Void arg) {
+    int a = eval(p.exp_1);
+    int b = eval(p.exp_2);
+    if (b == 0)
+      throw new RuntimeException("Division by zero");
+    return wrap(a / b);
+  }
+  public Integer visit(EAdd p, Void arg) { return wrap(eval(p.exp_1) + eval(p.exp_2)); }
+  public Integer visit(ESub p, Void arg) { return wrap(eval(p.exp_1) - eval(p.exp_2)); }
+
+  public Integer visit(ELt p, Void arg)  { return bool(eval(p.exp_1) <  eval(p.exp_2)); }
+  public Integer visit(EGt p, Void arg)  { return bool(eval(p.exp_1) >  eval(p.exp_2)); }
+  public Integer visit(ELEq p, Void arg) { return bool(eval(p.exp_1) <= eval(p.exp_2)); }
+  public Integer visit(EGeq p, Void arg) { return bool(eval(p.exp_1) >= eval(p.exp_2)); }
+  public Integer visit(EEq p, Void arg)  { return bool(eval(p.exp_1) == eval(p.exp_2)); }
+  public Integer visit(ENeq p, Void arg) { return bool(eval(p.exp_1) != eval(p.exp_2)); }
+
+  public Integer visit(EAnd p, Void arg) { return bool(eval(p.exp_1) != 0 && eval(p.exp_2) != 0); }
+  public Integer visit(EOr p, Void arg)  { return bool(eval(p.exp_1) != 0 || eval(p.exp_2) != 0); }
+
+  public Integer visit(EAss p, Void arg) { return set(p.id_, eval(p.exp_)); }
+}
@@ -0,0 +1,449 @@
+package test;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.util.stream.*;
+import org.antlr.v4.runtime.*;
+import C.*;
+import C.Absyn.*;
+import bench.Generator;
+import compiler.Assembler;
+import compiler.Assembly;
+import compiler.Compiler;
+import compiler.Cost;
+import compiler.Simulator;
+import optimizer.ConstantFolder;
+import optimizer.DeadCodeEliminator;
+import typechecker.TypeChecker;
+
+/* Tests of flispcc, run with make test.
+ *
+ * programs   Every program in test/programs starts with a comment
+ *            saying what main returns, // returns 3. It is compiled
+ *            and run in the simulator as flispcc -r does, optimized
+ *            and with --no-optimize, and both results must be that
+ *            number.
+ * golden     Every test/golden/x.c must compile to x.flisp as it is,
+ *            but for the date. They pin what load tracking and the
+ *            peephole rules do. With update the .flisp files are
+ *            written instead, look at the diff before committing.
+ *            --no-peephole must leave out the rules named.
+ * jobs       A batch of all the sources and a program of many
+ *            functions gives the same output and files on 1 and on 8
+ *            threads.
+ * incremental  A file compiled with --incremental after one function
+ *            changed is the same as compiled from scratch, with few
+ *            functions and with enough to compile them in parallel.
+ * cache      Eviction only deletes entries of the cache.
+ * opcodes    Every opcode the assembler knows is the one in
+ *            test/golden/opcodes.txt, from the FLISP instruction
+ *            list, and the other way around.
+ * cycles     Every cycle count in Cost is the one in
+ *            test/golden/cycles.txt, and the other way around. The
+ *            loop in test/golden/loop.c takes the cycles its
+ *            // cycles line says, counted by hand, with -r and with
+ *            --profile.
+ * qaflisp    When qaflisp is in PATH, the images of all sources are
+ *            assembled with it too and must be the same as ours.
+ * generated  Generator programs small enough for FLISP memory return
+ *            what Interpreter says they return.
+ *
+ * Files are compiled in a temporary directory through Main.run, the
+ * same entry point the command line and the daemon use, so the tree
+ * stays clean. Prints one line per failure and exits with 1 if any.
+ *
+ * Run as java test.Tests [dir] [update], dir is where test/ is,
+ * default ".".
+ * */
+public class Tests {
+  static final Pattern RETURNS = Pattern.compile("//\\s*returns\\s+(-?\\d+)");
+  static final Pattern RETURNED = Pattern.compile("main returned (-?\\d+) ");
+  static final Pattern CYCLES = Pattern.compile("//\\s*cycles\\s+(\\d+)");
+
+  // Generator seeds tried, and how many of them must fit in memory
+  static final int SEEDS = 300;
+  static final int MIN_COMPARED = 100;
+
+  final Path root;
+  final Path tmp;
+  int run;
+  final List<String> failed = new ArrayList<>();
+
+  Tests(Path root) throws IOException {
+    this.root = root;
+    this.tmp = Files.createTempDirectory("flispcc-test");
+  }
+
+  /*=============== Running flispcc ================ */
+
+  /* Output of Main.run on args, in tmp */
+  String flispcc(String... args) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PrintStream p = new PrintStream(out, true)) {
+      Method run = Class.forName("Main").getMethod("run",
+          String[].class, Path.class, PrintStream.class, PrintStream.class);
+      run.invoke(null, args, tmp, p, p);
+    } catch (InvocationTargetException e) {
+      throw new RuntimeException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException(e);
+    }
+    return out.toString();
+  }
+
+  /* What main returned in the simulator, null if it did not run */
+  Integer returned(String output) {
+    Matcher m = RETURNED.matcher(output);
+    return m.find() ? Integer.valueOf(m.group(1)) : null;
+  }
+
+  /* Source copied into tmp, returns its name there */
+  String copy(Path source) throws IOException {
+    Files.copy(source, tmp.resolve(source.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+    return source.getFileName().toString();
+  }
+
+  /* Text of a .flisp file without what changes from run to run. The
+   * author line is in the platform charset, so it is skipped too. */
+  static String flisp(Path p) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String line : Files.readAllLines(p, StandardCharsets.ISO_8859_1))
+      if (!line.startsWith(";; Compiled:") && !line.startsWith(";; Author:")
+          && !line.startsWith(";; incremental:"))
+        sb.append(line).append('\n');
+    return sb.toString();
+  }
+
+  /* First line that differs, for the failure message */
+  static String firstDifference(String expected, String actual) {
+    String[] e = expected.split("\n", -1);
+    String[] a = actual.split("\n", -1);
+    for (int i = 0; i < Math.min(e.length, a.length); i++)
+      if (!e[i].equals(a[i]))
+        return String.format("line %d is \"%s\", expected \"%s\"", i + 1, a[i].trim(), e[i].trim());
+    return String.format("%d lines, expected %d", a.length, e.length);
+  }
+
+  void check(String test, boolean ok, String why) {
+    run++;
+    if (!ok)
+      failed.add(test + ": " + why);
+  }
+
+  static List<Path> files(Path dir, String glob) throws IOException {
+    PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    try (Stream<Path> s = Files.list(dir)) {
+      return s.filter(p -> m.matches(p.getFileName())).sorted().collect(Collectors.toList());
+    }
+  }
+
+  /*=============== Tests ================ */
+
+  /* Programs that say what they return */
+  void programs() throws IOException {
+    for (Path p : files(root.resolve("test/programs"), "*.c")) {
+      Matcher m = RETURNS.matcher(new String(Files.readAllBytes(p)));
+      if (!m.find()) {
+        check(p.toString(), false, "no // returns line");
+        continue;
+      }
+      int expected = Integer.parseInt(m.group(1));
+      String file = copy(p);
+      for (String[] args : new String[][] {
+          { "-r", "-n", file }, { "-r", "-n", "--no-optimize", file } }) {
+        String out = flispcc(args);
+        Integer r = returned(out);
+        check(p.getFileName() + " " + String.join(" ", args), r != null && r == expected,
+            r == null ? out.trim() : "returned " + r + ", expected " + expected);
+      }
+    }
+  }
+
+  /* Compiled output of the sources in test/golden */
+  void golden(boolean update) throws IOException {
+    for (Path p : files(root.resolve("test/golden"), "*.c")) {
+      String file = copy(p);
+      String out = flispcc("-n", file);
+      String name = file.replaceAll("\\.c$", ".flisp");
+      Path expected = root.resolve("test/golden").resolve(name);
+      Path actual = tmp.resolve(name);
+      if (!Files.exists(actual)) {
+        check(file, false, out.trim());
+      } else if (update) {
+        Files.write(expected, flisp(actual).getBytes(StandardCharsets.ISO_8859_1));
+      } else if (!Files.exists(expected)) {
+        check(file, false, "no " + name + ", run with update");
+      } else {
+        String e = flisp(expected);
+        String a = flisp(actual);
+        check(file, e.equals(a), firstDifference(e, a));
+      }
+    }
+  }
+
+  /* --no-peephole leaves the rules named out and nothing else */
+  void noPeephole() throws IOException {
+    String file = copy(root.resolve("test/golden/peephole.c"));
+    String out = flispcc("-r", "-n", "--no-peephole=dead-load,unreachable", file);
+    String text = flisp(tmp.resolve("peephole.flisp"));
+    check("--no-peephole runs", returned(out) != null && returned(out) == 0, out.trim());
+    check("--no-peephole off", text.contains(";; peephole off: dead-load, unreachable"), "no off line");
+    check("--no-peephole rules", !text.contains(";; peephole dead-load")
+        && !text.contains(";; peephole unreachable") && text.contains(";; peephole nop"),
+        "wrong rules applied");
+    out = flispcc("-n", "--no-peephole=nop,bogus", file);
+    check("--no-peephole bogus", out.contains("No peephole rule bogus"), out.trim());
+  }
+
+  /* Batch output does not depend on the number of threads */
+  void jobs() throws IOException {
+    Path dir = Files.createDirectories(tmp.resolve("jobs"));
+    List<String> names = new ArrayList<>();
+    for (String d : new String[] { "test/programs", "test/golden" })
+      for (Path p : files(root.resolve(d), "*.c")) {
+        Files.copy(p, dir.resolve(p.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        names.add(p.getFileName().toString());
+      }
+    // Functions of one file are compiled in parallel when there are many
+    Files.write(dir.resolve("many.c"), new Generator(1).functions(40).program().getBytes());
+    names.add("many.c");
+
+    String[] outputs = new String[2];
+    List<Map<String, String>> files = new ArrayList<>();
+    int[] jobs = { 1, 8 };
+    for (int i = 0; i < jobs.length; i++) {
+      outputs[i] = flispcc("-b", "-n", "-j", Integer.toString(jobs[i]), "jobs")
+        .replaceAll("in \\d+ ms", "");
+      Map<String, String> flisps = new TreeMap<>();
+      for (String n : names)
+        flisps.put(n, flisp(dir.resolve(n.replaceAll("\\.c$", ".flisp"))));
+      files.add(flisps);
+    }
+    check("-j 1 and -j 8 output", outputs[0].equals(outputs[1]), firstDifference(outputs[0], outputs[1]));
+    for (String n : names)
+      check("-j 1 and -j 8 " + n, files.get(0).get(n).equals(files.get(1).get(n)),
+          firstDifference(files.get(0).get(n), files.get(1).get(n)));
+  }
+
+  /* Reused functions give the code a fresh compile gives. With more
+   * than 16 functions they are compiled on the common pool, which
+   * must not wait for the lock of the file. */
+  void incremental(int functions) throws IOException {
+    String before = new Generator(3).functions(functions).program();
+    // A new first statement in f2, the functions after it may call it
+    String after = before.replaceFirst("(int f2\\([^)]*\\) \\{\n)", "$1  g0 = g0 + 1;\n");
+    String test = "incremental " + functions + " functions";
+    check(test + " edit", !after.equals(before), "f2 not found");
+
+    String name = "inc" + functions;
+    Path source = tmp.resolve(name + ".c");
+    Path out = tmp.resolve(name + ".flisp");
+    Files.write(source, before.getBytes());
+    String reply = within(test, "--incremental", "-n", name + ".c");
+    Files.write(source, after.getBytes());
+    if (reply != null)
+      reply = within(test, "--incremental", "-n", name + ".c");
+    if (reply == null)
+      return;
+    String incremental = Files.exists(out) ? flisp(out) : reply;
+    Files.deleteIfExists(out);
+    flispcc("-n", name + ".c");
+    String fresh = flisp(out);
+    check(test + " and fresh", incremental.equals(fresh), firstDifference(fresh, incremental));
+  }
+
+  /* Output of flispcc, null and a failure if it takes more than a
+   * minute. A hung compile is left behind on a daemon thread. */
+  String within(String test, String... args) {
+    ExecutorService e = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r);
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      return e.submit(() -> flispcc(args)).get(60, TimeUnit.SECONDS);
+    } catch (TimeoutException x) {
+      check(test, false, "no end after 60 s, deadlocked?");
+      return null;
+    } catch (InterruptedException | ExecutionException x) {
+      check(test, false, x.toString());
+      return null;
+    } finally {
+      e.shutdown();
+    }
+  }
+
+  /* A full cache evicts its own entries and nothing else */
+  void cache() throws IOException {
+    Path cache = Files.createDirectories(tmp.resolve("cache"));
+    List<Path> others = Arrays.asList(cache.resolve("notes.txt"),
+        cache.resolve("ab/notes.txt"), cache.resolve("ab/keep/notes.txt"),
+        cache.resolve(String.join("", Collections.nCopies(32, "ab")) + "/notes.txt"));
+    for (Path p : others) {
+      Files.createDirectories(p.getParent());
+      Files.write(p, new byte[4096]);
+    }
+    // Opened at the default size first, then under 0 MB every store evicts
+    String size = "64";
+    for (Path p : files(root.resolve("test/programs"), "*.c")) {
+      flispcc("--cache", "cache", "--cache-size", size, copy(p));
+      size = "0";
+    }
+    for (Path p : others)
+      check("cache keeps " + tmp.relativize(p), Files.exists(p), "deleted by eviction");
+    try (Stream<Path> s = Files.walk(cache)) {
+      long left = s.filter(p -> p.getFileName().toString().matches("[0-9a-f]{64}")
+          && p.getParent().getFileName().toString().matches("[0-9a-f]{2}")).count();
+      check("cache evicts", left == 0, left + " entries left");
+    }
+  }
+
+  /* Assembler.OPCODES is the instruction list, no more and no less */
+  void opcodes() throws IOException {
+    Map<String, Integer> modes = new HashMap<>();
+    modes.put("Inherent", Assembler.INH);
+    modes.put("#Data", Assembler.IMM);
+    modes.put("Adr", Assembler.ABS);
+    modes.put("n,SP", Assembler.NS);
+    modes.put("n,X", Assembler.NS);
+    modes.put("n,Y", Assembler.NS);
+    modes.put("Relative", Assembler.REL);
+
+    Set<String> listed = new HashSet<>();
+    for (String line : Files.readAllLines(root.resolve("test/golden/opcodes.txt"), StandardCharsets.UTF_8)) {
+      if (line.startsWith("#") || line.trim().isEmpty())
+        continue;
+      String[] f = line.trim().split("\\s+");
+      int op = Integer.parseInt(f[0], 16);
+      int mode = modes.get(f[2]);
+      listed.add(f[1] + " " + mode);
+      int actual = Assembler.opcode(f[1], mode);
+      check("opcode " + f[1] + " " + f[2], actual == op,
+          actual < 0 ? "not in OPCODES" : String.format("is %02X, expected %02X", actual, op));
+    }
+    for (String m : Assembler.mnemonics())
+      for (int mode = Assembler.INH; mode <= Assembler.REL; mode++)
+        if (Assembler.opcode(m, mode) >= 0)
+          check("opcode " + m + " mode " + mode, listed.contains(m + " " + mode),
+              "not in the instruction list");
+  }
+
+  /* Cost charges the cycles of test/golden/cycles.txt, no more and no less */
+  void cycles() throws IOException {
+    Set<Integer> listed = new HashSet<>();
+    for (String line : Files.readAllLines(root.resolve("test/golden/cycles.txt"), StandardCharsets.UTF_8)) {
+      if (line.startsWith("#") || line.trim().isEmpty())
+        continue;
+      String[] f = line.trim().split("\\s+");
+      int op = Integer.parseInt(f[0], 16);
+      int taken = Integer.parseInt(f[3]);
+      int notTaken = f.length > 4 ? Integer.parseInt(f[4]) : taken;
+      listed.add(op);
+      check("cycles " + f[1] + " " + f[2], Cost.cycles(op) == taken && Cost.notTaken(op) == notTaken,
+          String.format("are %d/%d, expected %d/%d", Cost.cycles(op), Cost.notTaken(op), taken, notTaken));
+    }
+    for (String m : Assembler.mnemonics())
+      for (int mode = Assembler.INH; mode <= Assembler.REL; mode++) {
+        int op = Assembler.opcode(m, mode);
+        if (op >= 0)
+          check("cycles " + m + " mode " + mode, listed.contains(op), "not in cycles.txt");
+      }
+
+    Path p = root.resolve("test/golden/loop.c");
+    Matcher m = CYCLES.matcher(new String(Files.readAllBytes(p)));
+    if (!m.find()) {
+      check(p.toString(), false, "no // cycles line");
+      return;
+    }
+    String expected = m.group(1);
+    String file = copy(p);
+    String out = flispcc("-r", "-n", file);
+    check("loop.c -r cycles", out.contains(", " + expected + " cycles"), out.trim());
+    out = flispcc("--profile", "-n", file);
+    check("loop.c --profile cycles", out.contains("Profile: " + expected + " cycles"), out.trim());
+  }
+
+  /* Our images are those of qaflisp, when it is installed */
+  void qaflisp() throws IOException {
+    boolean found = false;
+    for (String d : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator))
+      found |= !d.isEmpty() && Files.isExecutable(Paths.get(d, "qaflisp"));
+    if (!found) {
+      System.out.println("qaflisp not in PATH, images not compared with it");
+      return;
+    }
+    for (String d : new String[] { "test/programs", "test/golden" })
+      for (Path p : files(root.resolve(d), "*.c")) {
+        String out = flispcc("-q", copy(p));
+        check(p.getFileName() + " -q", out.contains("Assembly successful") && !out.contains("Differs"),
+            out.trim());
+      }
+  }
+
+  /* Generator programs in the simulator and in the Interpreter */
+  void generated() {
+    CLexer lexer = new CLexer(null);
+    CParser parser = new CParser(null);
+    lexer.removeErrorListeners();
+    parser.removeErrorListeners();
+    int compared = 0;
+    for (int seed = 1; seed <= SEEDS; seed++) {
+      String source = new Generator(seed).functions(1 + seed % 3)
+        .statements(2).depth(1).chain(2).globals(1).program();
+      lexer.setInputStream(new ANTLRInputStream(source));
+      parser.setTokenStream(new CommonTokenStream(lexer));
+      Program ast = parser.program().result;
+      int expected = Interpreter.run(ast);
+
+      Program p = new TypeChecker().typecheck(ast);
+      p = new ConstantFolder().fold(p);
+      p = new DeadCodeEliminator().eliminate(p);
+      Assembly asm = new Compiler().generate("generated", p);
+      int returned;
+      try {
+        returned = (byte)new Simulator(asm).run();
+      } catch (RuntimeException e) {
+        // Too big for 256 bytes of code and stack
+        String m = String.valueOf(e.getMessage());
+        if (m.contains("does not fit") || m.contains("overwrites the program"))
+          continue;
+        check("generated seed " + seed, false, m);
+        continue;
+      }
+      compared++;
+      check("generated seed " + seed, returned == expected,
+          "returned " + returned + ", expected " + expected);
+    }
+    check("generated", compared >= MIN_COMPARED,
+        "only " + compared + " of " + SEEDS + " programs fit in memory");
+  }
+
+  int report() {
+    for (String f : failed)
+      System.out.println("FAILED " + f);
+    System.out.println(String.format("%d tests, %d failed", run, failed.size()));
+    return failed.isEmpty() ? 0 : 1;
+  }
+
+  public static void main(String args[]) throws IOException {
+    Tests t = new Tests(Paths.get(args.length > 0 ? args[0] : "."));
+    boolean update = args.length > 1 && args[1].equals("update");
+    t.programs();
+    t.golden(update);
+    t.noPeephole();
+    t.jobs();
+    t.incremental(12);
+    t.incremental(40);
+    t.cache();
+    t.opcodes();
+    t.cycles();
+    t.qaflisp();
+    t.generated();
+    System.exit(t.report());
+  }
+}
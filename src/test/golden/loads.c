@@ -0,0 +1,18 @@
+// Values A, X and Y already hold, and flags that already describe A
+int g;
+
+int same(int a, int b) {
+  int c = a;
+  int d = a;
+  if (c == d) { return b; } else { return a; }
+}
+
+int main() {
+  int x = 7;
+  g = x;
+  x = g;
+  g = 7;
+  int y = g + x;
+  if (y != 0) { y = same(y, y); } else { y = 0; }
+  return y;
+}
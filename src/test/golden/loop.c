@@ -0,0 +1,17 @@
+// cycles 180
+// A loop whose cycles are counted by hand from loop.flisp and
+// test/golden/cycles.txt, change both if either changes:
+//   before     LEASP 5, LDX # 4, LDA # 4, STA n,SP 6           19
+//   4 times    CMPX # 4, BGE not taken 5, LDA n,SP 6, ADDA # 4,
+//              STA n,SP 6, LEAX 4, BRA 5                  4 x 34
+//   last test  CMPX # 4, BGE taken 5                             9
+//   after      LDA n,SP 6, LEASP 5, BRA 5                       16
+int main() {
+  int i = 0;
+  int s = 0;
+  while (i < 4) {
+    s = s + 3;
+    i++;
+  }
+  return s;
+}
@@ -0,0 +1,19 @@
+// Stores read back at once, loads overwritten before use, tests
+// after loads, branches to the next instruction and unreachable code
+int g;
+int h;
+
+int f(int a) {
+  g = a;
+  h = g;
+  if (h == 0) { return 1; } else { return 2; }
+  return 3;
+}
+
+int main() {
+  int x = f(4);
+  x = 5;
+  x = 6;
+  while (x > 0) { x--; }
+  return x;
+}
@@ -0,0 +1,13 @@
+// returns 3
+// && of two comparisons with the left operands in registers
+int main() {
+  int n = 3;
+  int m = 5;
+  int s = 0;
+  while (n > 0 && m > 0) {
+    s = s + 1;
+    n--;
+    m--;
+  }
+  return s;
+}
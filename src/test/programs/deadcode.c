@@ -0,0 +1,14 @@
+// returns 5
+// Branches, loops, statements and functions that never run are dropped
+int unused(int a) { return a; }
+int used(int a) { return a + 1; }
+int dead() { return 2; }
+
+int main() {
+  int x = 1;
+  if (x < 0) { x = dead(); } else { x = used(x); }
+  while (false) { x++; }
+  while (x < 5) { x++; }
+  return x;
+  x = 7;
+}
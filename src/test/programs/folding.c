@@ -0,0 +1,17 @@
+// returns 42
+// Constant expressions folded before compiling, around what is not constant
+int g;
+
+int twice(int a) {
+  return a + a;
+}
+
+int main() {
+  int x = 3 + 4 - 1;
+  int y = x * 2 + 10 / 3;
+  int z = 0;
+  g = y - x;
+  if (1 < 2 && x == 6) { z = z + 20; } else { z = 99; }
+  while (false) { z++; }
+  return x + g + z + twice(3) + 1;
+}
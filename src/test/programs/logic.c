@@ -0,0 +1,19 @@
+// returns 40
+// Every comparison as an operand of && and ||, on parameters and locals
+int count(int a, int b) {
+  int n = 0;
+  if (a < b || a == b) { n++; } else { n = n; }
+  if (a <= b && a != b) { n++; } else { n = n; }
+  if (a >= b || a > b) { n++; } else { n = n; }
+  if (a == b && b == a) { n++; } else { n = n; }
+  return n;
+}
+
+int main() {
+  int g = 2;
+  int t = 0;
+  if (g > 1 && g < 3) { t++; } else { t = t; }
+  if (g == 1 || g >= 2) { t++; } else { t = t; }
+  if (g != 2 || g < 0) { t++; } else { t = t; }
+  return count(1, 2) * 10 + count(3, 3) * 5 + count(5, 4) * 3 + t;
+}
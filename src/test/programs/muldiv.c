@@ -0,0 +1,9 @@
+// returns -55
+// Multiplication and division by shifts and adds, and by __mul and __div
+int m(int a, int b) { return a * b; }
+int q(int a, int b) { return a / b; }
+int d(int a) { return a / 8 + a * 6; }
+
+int main() {
+  return m(200, 200) + q(251, 251) + d(241) + q(0 - 100, 7) + m(0 - 3, 5);
+}
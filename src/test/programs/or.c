@@ -0,0 +1,21 @@
+// returns 21
+// || and && of comparisons on parameters, false and true
+int either(int a, int b) {
+  if (a < b || b > 4) {
+    return 1;
+  } else {
+    return 2;
+  }
+}
+
+int both(int a, int b) {
+  if (a > b && b > 4) {
+    return 1;
+  } else {
+    return 2;
+  }
+}
+
+int main() {
+  return either(5, 3) * 10 + both(7, 5);
+}
@@ -0,0 +1,20 @@
+// returns 88
+// Parameters and locals kept in X and Y, across calls and loops
+int g;
+
+int sum3(int a, int b, int c) {
+  int d = c;
+  while (d > 0) { d--; }
+  return a + b + c;
+}
+
+int main() {
+  int i = 0;
+  int s = 0;
+  g = 5;
+  while (i < g) {
+    s = sum3(i, 2, s) + s;
+    i++;
+  }
+  return s;
+}
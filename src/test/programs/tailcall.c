@@ -0,0 +1,18 @@
+// returns 16
+// A call as the last thing a function does jumps to the callee
+int count(int n, int acc) {
+  if (n == 0) { return acc; } else { return count(n - 1, acc + 2); }
+}
+
+int twice(int a) {
+  return count(a, a);
+}
+
+int three(int a, int b, int c) {
+  return a + b + c;
+}
+
+int main() {
+  int r = count(5, 0);
+  return three(r, 1, 2) + twice(1);
+}
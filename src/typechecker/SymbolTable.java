@@ -0,0 +1,159 @@
+package typechecker;
+
+import java.util.*;
+
+/* Local variables in scope, for the TypeChecker and the Compiler.
+ *
+ * Names are interned to small ids in an open addressing table the
+ * first time they are seen, and bound[id] is the innermost declaration
+ * of the name. A lookup is one probe sequence however deeply blocks
+ * nest. A declaration writes what it shadows to an undo log and pop()
+ * puts back everything written since the matching push(), so leaving
+ * a block costs what was declared in it.
+ *
+ * Global variables are not kept here, the callers look them up first.
+ * */
+public class SymbolTable<V> {
+  // Interned names by id, and the hash table over them holding id + 1,
+  // 0 for an empty slot. Linear probing, at most half full.
+  String[] names = new String[16];
+  int[] slots = new int[32];
+  int count;
+
+  // Innermost declaration of every id, null if not in scope, and the
+  // scope it was declared in
+  Object[] bound = new Object[16];
+  int[] scope = new int[16];
+
+  // Undo log: the id declared and the declaration and scope it hid
+  int[] logIds = new int[16];
+  Object[] logValues = new Object[16];
+  int[] logScopes = new int[16];
+  int logSize;
+
+  // Log size at every push, scopes is the current depth
+  int[] marks = new int[8];
+  int scopes;
+
+  /*=============== Scopes ================ */
+
+  public void push() {
+    if(scopes == marks.length)
+      marks = Arrays.copyOf(marks, scopes * 2);
+    marks[scopes++] = logSize;
+  }
+
+  /* Leaves the innermost scope, the declarations it hid are back */
+  public void pop() {
+    int mark = marks[--scopes];
+    while(logSize > mark) {
+      logSize--;
+      int id = logIds[logSize];
+      bound[id] = logValues[logSize];
+      scope[id] = logScopes[logSize];
+      logValues[logSize] = null;
+    }
+  }
+
+  /* Leaves every scope, names stay interned for the next function */
+  public void clear() {
+    while(scopes > 0)
+      pop();
+  }
+
+  /* Declares name in the innermost scope */
+  public void put(String name, V value) {
+    int id = intern(name);
+    if(logSize == logIds.length) {
+      int n = logSize * 2;
+      logIds    = Arrays.copyOf(logIds, n);
+      logValues = Arrays.copyOf(logValues, n);
+      logScopes = Arrays.copyOf(logScopes, n);
+    }
+    logIds[logSize]    = id;
+    logValues[logSize] = bound[id];
+    logScopes[logSize] = scope[id];
+    logSize++;
+    bound[id] = value;
+    scope[id] = scopes;
+  }
+
+  /* Innermost declaration of name, null if none is in scope */
+  @SuppressWarnings("unchecked")
+  public V get(String name) {
+    int id = find(name);
+    return id < 0 ? null : (V)bound[id];
+  }
+
+  /* Whether name was declared in the innermost scope */
+  public boolean declaredInScope(String name) {
+    int id = find(name);
+    return id >= 0 && bound[id] != null && scope[id] == scopes;
+  }
+
+  /* Declarations in the innermost scope */
+  public int scopeSize() {
+    return scopes == 0 ? 0 : logSize - marks[scopes - 1];
+  }
+
+  /* Every declaration in scope, hidden ones included */
+  @SuppressWarnings("unchecked")
+  public List<V> all() {
+    List<V> all = new ArrayList<>();
+    for(int id = 0; id < count; id++)
+      if(bound[id] != null)
+        all.add((V)bound[id]);
+    for(int i = 0; i < logSize; i++)
+      if(logValues[i] != null)
+        all.add((V)logValues[i]);
+    return all;
+  }
+
+  /*=============== Interning ================ */
+
+  /* Id of name, -1 if it was never declared */
+  int find(String name) {
+    int mask = slots.length - 1;
+    for(int i = hash(name) & mask; slots[i] != 0; i = (i + 1) & mask)
+      if(names[slots[i] - 1].equals(name))
+        return slots[i] - 1;
+    return -1;
+  }
+
+  int intern(String name) {
+    int mask = slots.length - 1;
+    int i = hash(name) & mask;
+    for(; slots[i] != 0; i = (i + 1) & mask)
+      if(names[slots[i] - 1].equals(name))
+        return slots[i] - 1;
+
+    int id = count++;
+    if(id == names.length) {
+      names = Arrays.copyOf(names, id * 2);
+      bound = Arrays.copyOf(bound, id * 2);
+      scope = Arrays.copyOf(scope, id * 2);
+    }
+    names[id] = name;
+    slots[i] = id + 1;
+    if(count * 2 > slots.length)
+      rehash();
+    return id;
+  }
+
+  void rehash() {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for(int id = 0; id < count; id++) {
+      int i = hash(names[id]) & mask;
+      while(slots[i] != 0)
+        i = (i + 1) & mask;
+      slots[i] = id + 1;
+    }
+  }
+
+  /* String.hashCode is cached, spread its high bits for the mask */
+  static int hash(String name) {
+    int h = name.hashCode();
+    return h ^ (h >>> 16);
+  }
+}
@@ -22,33 +22,39 @@ public class TypeChecker implements
   final Type VOID   = new TVoid();
 
   TreeMap<String, FuncType> signatures;          // function signatures  TreeMap..
-  LinkedList<TreeMap<String, Type>> context;     // blocks LinkedList<TreeMap..
-  TreeMap<String, Type> globalvars;              // global variables
+  SymbolTable<Type> context;                     // blocks
+  HashMap<String, Type> globalvars;              // global variables
+  Set<String> only;                              // functions to check, null for all
 
   /* Entry point for typechecker */
   public Program typecheck(Program p) {
-    context = new LinkedList<>();
+    return typecheck(p, null);
+  }
+
+  /* Checks only the bodies of the functions named in only, the
+   * signatures and globals of the whole program are still known */
+  public Program typecheck(Program p, Set<String> only) {
+    this.only = only;
+    context = new SymbolTable<>();
     signatures = new TreeMap<String, FuncType>();
-    globalvars = new TreeMap<String, Type>();
+    globalvars = new HashMap<String, Type>();
     p.accept(this, null);
     return p;
   }
 
   /*=============== Auxilaries ================ */
   /* Returns type of variable from context
-   * Since context works as a stack, we only
-   * need to get the first one.
+   * The context keeps the innermost declaration
+   * of every name, so one lookup is enough.
    * */
   public Type lookupVar(String id) {
     Type gt = globalvars.get(id);
     if(gt != null)
       return gt;
 
-    for (Map<String, Type> m : context) {
-      Type ret = m.get(id);
-      if (ret != null)
-        return ret;
-    }
+    Type ret = context.get(id);
+    if (ret != null)
+      return ret;
 
     throw new TypeException("variable is undefined");
   }
@@ -62,10 +68,9 @@ public class TypeChecker implements
     if(globalvars.containsKey(id))
       throw new TypeException(String.format("Variable already defined: %s.", id));
 
-    Map<String, Type> ctx = context.getFirst();
-    if(ctx.containsKey(id))
+    if(context.declaredInScope(id))
        throw new TypeException(String.format("Variable already defined: %s.", id));
-    ctx.put(id, t);
+    context.put(id, t);
   }
 
   public void addGlobal(String id, Type t) {
@@ -217,18 +222,18 @@ public class TypeChecker implements
   }
 
   /**
-   * When entering a scope, add a new context
-   * free of signatures at the start of the stack.
+   * When entering a scope, start a new
+   * scope free of variables in the context.
    */
   public void enterScope() {
-    context.addFirst(new TreeMap());
+    context.push();
   }
   /**
-   * When leaving a scope, remove the first
-   * (newest) context in the stack.
+   * When leaving a scope, drop its variables
+   * and bring back the ones they hid.
    */
   public void leaveScope() {
-    context.removeFirst();
+    context.pop();
   }
 
   /*================ Program ===================*/
@@ -245,9 +250,6 @@ public class TypeChecker implements
     addSignature("writeInt",    new FuncType(VOID, oneArgFunc("x", INT)));
     addSignature("readInt",     new FuncType(INT, new ListArg()));
 
-    // Set global context
-    context.addFirst(new TreeMap());
-
     for (Def d : p.listdef_) {
       if(d instanceof DFunc)
         addSignatures((DFunc)d);
@@ -255,6 +257,8 @@ public class TypeChecker implements
 
     // go through functions defs
     for(Def d : p.listdef_) {
+      if(only != null && d instanceof DFunc && !only.contains(((DFunc)d).id_))
+        continue;
       d.accept(this, null);
     }
 
@@ -282,8 +286,8 @@ public class TypeChecker implements
     FuncType currFunc = new FuncType(p.type_, p.listarg_);
 
     // Add init context.
-    context = new LinkedList();
-    context.add(new TreeMap());
+    context.clear();
+    context.push();
 
     // add function parameters to context
     for(Arg a : p.listarg_) {